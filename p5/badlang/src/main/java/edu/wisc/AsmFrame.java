@@ -1,23 +1,45 @@
 package edu.wisc;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentSkipListMap;
 
 class AsmFrame {
+	// The first arguments of a call are passed in these, the rest on the stack
+	static final List<String> ARG_REGISTERS = List.of("$a0", "$a1", "$a2", "$a3");
+	// Where SPIM points $gp; globals from here on are a single lw/sw away
+	private static final String SMALL_DATA = "0x10008000";
+	// Offsets that fit a load or store's signed 16 bits
+	private static final int SMALL_DATA_BYTES = 0x8000;
+
 	private final Map<String, Var> statics;
+	// $gp offset of each global in the small data area, in layout order
+	private final Map<String, Integer> smallData;
 	private final Map<String, Var> locals;
 	private final Map<String, Var> params;
 	private final boolean isStatic;
 	private final AsmFrame parent;
 	private final String name;
 	private Integer nestCount;
-	private String asm = "";
+	// Body instructions, shared by a function frame and all of its nested blocks
+	private final List<MipsInstr> code;
 	private int labelCount;
+	// Stack slots in use by the blocks open so far, and the most ever in use; only used on the outermost frame
+	private int slotCount;
+	private int maxSlots;
+	// The slot count when this block was opened, which it goes back to when the block ends
+	private int firstSlot;
 
 	private static class Var {
 		public int ind;
 		public String ref;
+		// Set for a parameter that stays in the register it was passed in
+		public String reg;
 		public VarType t;
 
 		Var(int ind, VarType t) {
@@ -31,8 +53,16 @@ class AsmFrame {
 		}
 	}
 
-	public AsmFrame() {
-		this.statics = new HashMap<>();
+	// main's frame, with globals laid out in the small data area in the given order
+	public AsmFrame(List<String> globals) {
+		// Functions may be generated on other threads while looking up statics
+		this.statics = new ConcurrentSkipListMap<>();
+		Map<String, Integer> small = new LinkedHashMap<>();
+		for (String g : globals) {
+			if (4 * small.size() < SMALL_DATA_BYTES)
+				small.put(g, 4 * small.size());
+		}
+		this.smallData = Collections.unmodifiableMap(small);
 		this.locals = new HashMap<>();
 		this.params = new HashMap<>();
 		this.nestCount = 0;
@@ -40,10 +70,17 @@ class AsmFrame {
 		this.name = "main";
 		this.labelCount = 0;
 		this.isStatic = true;
+		this.code = new ArrayList<>();
 	}
 
-	public AsmFrame(Stmt.Function fun, AsmFrame parent) {
+	/*
+	 * Arguments past the first four are on the stack above $fp. The rest
+	 * arrive in $a0-$a3 and, unless argsInRegisters says nothing in the body
+	 * will overwrite those registers, are first stored to stack slots.
+	 */
+	public AsmFrame(Stmt.Function fun, AsmFrame parent, boolean argsInRegisters) {
 		this.statics = parent.statics;
+		this.smallData = parent.smallData;
 		this.locals = new HashMap<>();
 		this.params = new HashMap<>();
 		this.name = "_" + fun.name;
@@ -51,23 +88,37 @@ class AsmFrame {
 		this.nestCount = 0;
 		this.labelCount = 0;
 		this.isStatic = false;
+		this.code = new ArrayList<>();
 
 		for (int i = 0; i < fun.params.size(); i++) {
-			this.params
-					.put(fun.params.get(i).name(), new Var(4 * (fun.params.size() - i), fun.params.get(i).type()));
+			Stmt.Parameter p = fun.params.get(i);
+			if (i >= ARG_REGISTERS.size()) {
+				this.params.put(p.name(), new Var(4 * (fun.params.size() - i), p.type()));
+			} else if (argsInRegisters) {
+				Var v = new Var(0, p.type());
+				v.reg = ARG_REGISTERS.get(i);
+				this.params.put(p.name(), v);
+			} else {
+				int ind = this.allocSlot();
+				this.params.put(p.name(), new Var(ind, p.type()));
+				this.asm("sw", ARG_REGISTERS.get(i), ind + "($fp)");
+			}
 		}
 	}
 
 	public AsmFrame(AsmFrame parent) {
 		this.statics = parent.statics;
+		this.smallData = parent.smallData;
 		this.locals = new HashMap<>();
 		this.params = parent.params;
 		this.parent = parent;
 		this.labelCount = parent.labelCount;
 		this.nestCount = parent.nestCount + 1;
 		this.name = parent.name;
-		this.asm = parent.asm + "\t# Block " + this.nestCount + "\n";
+		this.code = parent.code;
+		this.code.add(MipsInstr.comment("Block " + this.nestCount));
 		this.isStatic = false;
+		this.firstSlot = this.root().slotCount;
 	}
 
 	public void allocString(String name, String value) {
@@ -81,11 +132,37 @@ class AsmFrame {
 	public void allocVar(String name, VarType t) {
 		if (this.isStatic) {
 			this.statics.put(name, new Var(".space 4", t));
-		} else if (this.parent != null) {
-			this.locals.put(this.nestCount + name, new Var(-8 - 4 * this.locals.size(), t));
 		} else {
-			this.locals.put(name, new Var(-8 - 4 * this.locals.size(), t));
+			this.locals.put(name, new Var(this.allocSlot(), t));
+		}
+	}
+
+	/*
+	 * Blocks take their slots from the enclosing function's frame, stack
+	 * fashion: a block's slots are handed back when it ends, so sibling
+	 * blocks share them and the frame is only as big as the deepest nesting.
+	 */
+	private int allocSlot() {
+		AsmFrame root = this.root();
+		int slot = root.slotCount++;
+		root.maxSlots = Math.max(root.maxSlots, root.slotCount);
+		return -8 - 4 * slot;
+	}
+
+	private AsmFrame root() {
+		AsmFrame f = this;
+		while (f.parent != null)
+			f = f.parent;
+		return f;
+	}
+
+	// Innermost declaration of a local, searching out through enclosing blocks
+	private Var findLocal(String name) {
+		for (AsmFrame f = this; f != null; f = f.parent) {
+			if (f.locals.containsKey(name))
+				return f.locals.get(name);
 		}
+		return null;
 	}
 
 	public String getLabel(String name) {
@@ -93,36 +170,37 @@ class AsmFrame {
 	}
 
 	public void putLabel(String label) {
-		this.asm += label + ":\n";
+		this.code.add(MipsInstr.label(label));
 	}
 
 	public String getReturnLabel() {
 		return "return_" + this.name;
 	}
 
+	// The address of a variable, or the register holding it for a parameter kept in one
 	public String getVar(String name) {
-		if (this.locals.containsKey(name)) {
-			return this.locals.get(name).ind + "($fp)";
-		} else if (this.locals.containsKey(this.nestCount + name)) {
-			return this.locals.get(this.nestCount + name).ind + "($fp)";
-		} else if (parent != null && parent.locals.containsKey(name)) {
-			return parent.locals.get(name).ind + "($fp)";
+		Var local = this.findLocal(name);
+		if (local != null) {
+			return local.ind + "($fp)";
 		} else if (this.params.containsKey(name)) {
-			return this.params.get(name).ind + "($fp)";
+			Var p = this.params.get(name);
+			return p.reg != null ? p.reg : p.ind + "($fp)";
 		} else if (this.statics.containsKey(name)) {
-			return "_" + name;
+			Integer offset = this.smallData.get(name);
+			return offset != null ? offset + "($gp)" : "_" + name;
 		} else {
 			throw new Error("Unknown variable '" + name + "'");
 		}
 	}
 
+	public boolean isGlobal(String name) {
+		return this.findLocal(name) == null && !this.params.containsKey(name) && this.statics.containsKey(name);
+	}
+
 	public VarType getVarType(String name) {
-		if (this.locals.containsKey(name)) {
-			return this.locals.get(name).t;
-		} else if (this.locals.containsKey(this.nestCount + name)) {
-			return this.locals.get(this.nestCount + name).t;
-		} else if (parent != null && parent.locals.containsKey(name)) {
-			return parent.locals.get(name).t;
+		Var local = this.findLocal(name);
+		if (local != null) {
+			return local.t;
 		} else if (this.params.containsKey(name)) {
 			return this.params.get(name).t;
 		} else if (this.statics.containsKey(name)) {
@@ -132,60 +210,141 @@ class AsmFrame {
 		}
 	}
 
-	public void asm(String asm) {
-		this.asm += "\t" + asm + "\n";
+	public void asm(String op, String... args) {
+		this.code.add(MipsInstr.instr(op, args));
 	}
 
-	public String emit() {
-		if (parent == null) {
-			String ret = "";
+	public void asm(MipsInstr in) {
+		this.code.add(in);
+	}
 
-			if (this.isStatic) {
-				// We're main, so we should add statics and .data and .text
-				ret += ".data\n";
-				for (Entry<String, Var> e : this.statics.entrySet()) {
-					ret += ".align 2\n";
-					ret += "_" + e.getKey() + ":\t\t" + e.getValue().ref + "\n";
-				}
+	public void comment(String text) {
+		this.code.add(MipsInstr.comment(text));
+	}
 
-				ret += """
-						\n.text
-						.globl main
+	/*
+	 * Appends the data section holding every static; only main has them.
+	 * Globals in the small data area come first, pinned to where $gp points,
+	 * then any that didn't fit, then the strings, which are never written.
+	 */
+	public void emitData(List<MipsInstr> out) {
+		if (!this.isStatic)
+			throw new Error("Only main has statics!");
 
-						""";
-			}
+		if (!this.smallData.isEmpty())
+			out.add(MipsInstr.directive(".data " + SMALL_DATA));
+		for (String g : this.smallData.keySet())
+			out.add(MipsInstr.directive("_" + g + ":\t\t" + this.statics.get(g).ref));
 
-			ret += this.name + ":\n";
-
-			// Generate preamble
-			ret += """
-					\t# Preamble:
-					\tsw $ra, 0($sp)
-					\tsubu $sp, $sp, 4
-					\tsw $fp, 0($sp)
-					\tsubu $sp, $sp, 4
-					\taddu $fp, $sp, 8
-					\tsubu $sp, $sp,""";
-			ret += " " + this.locals.size() * 4 + "\n";
-
-			// Put in body
-			ret += "\t# Body:\n" + this.asm;
-
-			// Function exit
-			ret += this.getReturnLabel() + ":\n";
-			ret += """
-					\t# Exit:
-					\tlw $ra, 0($fp)
-					\tmove $t0, $fp
-					\tlw $fp, -4($fp)
-					\tmove $sp, $t0
-					\tjr $ra
-					""";
-
-			return ret;
-		} else {
+		List<String> rest = new ArrayList<>();
+		for (Entry<String, Var> e : this.statics.entrySet()) {
+			if (e.getValue().t != null && !this.smallData.containsKey(e.getKey()))
+				rest.add(e.getKey());
+		}
+		if (!rest.isEmpty())
+			out.add(MipsInstr.directive(".data"));
+		for (String g : rest) {
+			out.add(MipsInstr.directive(".align 2"));
+			out.add(MipsInstr.directive("_" + g + ":\t\t" + this.statics.get(g).ref));
+		}
+
+		out.add(MipsInstr.directive(".rdata"));
+		for (Entry<String, Var> e : this.statics.entrySet()) {
+			if (e.getValue().t == null)
+				out.add(MipsInstr.directive("_" + e.getKey() + ":\t\t" + e.getValue().ref));
+		}
+	}
+
+	/*
+	 * Appends this function's complete code. Frames are laid out the same way
+	 * whatever the prologue: $ra at 0($fp), the caller's $fp at -4($fp), then
+	 * locals, with $fp at the $sp the function was entered with.
+	 *
+	 * A leaf function never makes a call, so it leaves $ra where it is. If
+	 * the body never moves $sp, every $fp offset is a fixed distance from
+	 * $sp, so $fp isn't set up at all and locals are addressed off $sp. A
+	 * leaf with no locals then needs no prologue or epilogue besides jr.
+	 */
+	public void emit(List<MipsInstr> out) {
+		if (parent != null)
 			throw new Error("Cant emit raw block!");
+
+		boolean leaf = true;
+		boolean movesSp = false;
+		for (MipsInstr in : this.code) {
+			leaf &= !in.is("jal");
+			movesSp |= "$sp".equals(in.def());
+		}
+
+		out.add(MipsInstr.label(this.name));
+		if (movesSp)
+			this.emitWithFp(out, leaf);
+		else
+			this.emitWithoutFp(out, leaf);
+	}
+
+	private void emitWithFp(List<MipsInstr> out, boolean leaf) {
+		String size = Integer.toString(8 + 4 * this.maxSlots);
+
+		// Generate preamble
+		out.add(MipsInstr.comment("Preamble:"));
+		if (!leaf)
+			out.add(MipsInstr.instr("sw", "$ra", "0($sp)"));
+		out.add(MipsInstr.instr("sw", "$fp", "-4($sp)"));
+		out.add(MipsInstr.instr("move", "$fp", "$sp"));
+		out.add(MipsInstr.instr("subu", "$sp", "$sp", size));
+
+		// Put in body
+		out.add(MipsInstr.comment("Body:"));
+		out.addAll(this.code);
+
+		// Function exit
+		out.add(MipsInstr.label(this.getReturnLabel()));
+		out.add(MipsInstr.comment("Exit:"));
+		if (!leaf)
+			out.add(MipsInstr.instr("lw", "$ra", "0($fp)"));
+		out.add(MipsInstr.instr("move", "$sp", "$fp"));
+		out.add(MipsInstr.instr("lw", "$fp", "-4($sp)"));
+		out.add(MipsInstr.instr("jr", "$ra"));
+	}
+
+	private void emitWithoutFp(List<MipsInstr> out, boolean leaf) {
+		// What would be $fp is $sp plus the frame size throughout the body
+		int size = leaf && this.maxSlots == 0 ? 0 : 8 + 4 * this.maxSlots;
+
+		// Generate preamble
+		out.add(MipsInstr.comment("Preamble:"));
+		if (size > 0)
+			out.add(MipsInstr.instr("subu", "$sp", "$sp", Integer.toString(size)));
+		if (!leaf)
+			out.add(MipsInstr.instr("sw", "$ra", size + "($sp)"));
+
+		// Put in body, addressed off $sp
+		out.add(MipsInstr.comment("Body:"));
+		for (MipsInstr in : this.code)
+			out.add(rebase(in, size));
+
+		// Function exit
+		out.add(MipsInstr.label(this.getReturnLabel()));
+		out.add(MipsInstr.comment("Exit:"));
+		if (!leaf)
+			out.add(MipsInstr.instr("lw", "$ra", size + "($sp)"));
+		if (size > 0)
+			out.add(MipsInstr.instr("addu", "$sp", "$sp", Integer.toString(size)));
+		out.add(MipsInstr.instr("jr", "$ra"));
+	}
+
+	// in with each N($fp) operand turned into (N + size)($sp)
+	private static MipsInstr rebase(MipsInstr in, int size) {
+		if (in.kind() != MipsInstr.Kind.INSTR)
+			return in;
+		List<String> args = new ArrayList<>();
+		for (String a : in.args()) {
+			if (a.endsWith("($fp)"))
+				a = (Integer.parseInt(a.substring(0, a.length() - 5)) + size) + "($sp)";
+			args.add(a);
 		}
+		return new MipsInstr(in.kind(), in.op(), List.copyOf(args));
 	}
 
 	public AsmFrame endBlock() {
@@ -193,8 +352,9 @@ class AsmFrame {
 			throw new Error("Not in a block!");
 		}
 
-		this.asm("# End of Block " + this.nestCount);
-		this.parent.asm = this.asm;
+		this.comment("End of Block " + this.nestCount);
+		this.parent.labelCount = this.labelCount;
+		this.root().slotCount = this.firstSlot;
 		return this.parent;
 	}
 }
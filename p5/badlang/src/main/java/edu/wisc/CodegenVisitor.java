@@ -1,9 +1,18 @@
 package edu.wisc;
 
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 import edu.wisc.Expr.Binary;
 import edu.wisc.Expr.Call;
@@ -21,24 +30,79 @@ import edu.wisc.Stmt.Var;
 import edu.wisc.Stmt.While;
 
 public final class CodegenVisitor implements Expr.Visitor<VarType>, Stmt.Visitor<Void> {
-	private List<AsmFrame> frames;
 	private Map<String, Stmt.Function> funcs;
+	private AsmFrame main;
 	private AsmFrame frame;
+	// Finished functions are optimized by this, if set, before being written
+	private final Peephole peephole;
+	// Finished code is then scheduled for delay slots by this, if set
+	private final Scheduler scheduler;
+	// Functions are generated on this pool when set, otherwise one by one on the calling thread
+	private final ForkJoinPool pool;
+	// Functions submitted per pool worker before the oldest is written out
+	private static final int IN_FLIGHT_PER_WORKER = 4;
+	// The code of the function most recently visited
+	private List<MipsInstr> finished;
+
+	/*
+	 * Expressions are evaluated into registers from this pool, each visit
+	 * leaving the register holding its value in result. $t0 and $t1 stay free
+	 * as scratch for statements and spills. Only when a subtree needs more
+	 * registers than are free does an intermediate value go to the stack.
+	 */
+	private static final List<String> POOL = List.of("$t2", "$t3", "$t4", "$t5", "$t6", "$t7", "$t8", "$t9");
+	private final Deque<String> free = new ArrayDeque<>(POOL);
+	// Registers holding values still needed by an enclosing expression, in order taken
+	private final List<String> busy = new ArrayList<>();
+	private String result;
+
+	/*
+	 * Globals held in $s registers while inside a loop without calls, and the
+	 * ones of those the loop assigns. Nothing outside the function can look
+	 * at a global during such a loop, and these registers are never live
+	 * across a call, so nothing saves them.
+	 */
+	private static final List<String> PROMOTE = List.of("$s0", "$s1", "$s2", "$s3", "$s4", "$s5", "$s6", "$s7");
+	private final Map<String, String> promoted = new HashMap<>();
+	private final Set<String> written = new HashSet<>();
 
 	CodegenVisitor() {
-		this.frames = new ArrayList<>();
+		this(null, null, null);
+	}
+
+	CodegenVisitor(Peephole peephole, Scheduler scheduler, ForkJoinPool pool) {
 		this.funcs = new HashMap<>();
+		this.peephole = peephole;
+		this.scheduler = scheduler;
+		this.pool = pool;
+	}
+
+	// A visitor for one function, sharing only the read-only function table and main's statics
+	private CodegenVisitor(CodegenVisitor parent) {
+		this.funcs = parent.funcs;
+		this.main = parent.main;
+		this.frame = parent.main;
+		this.peephole = parent.peephole;
+		this.scheduler = parent.scheduler;
+		this.pool = null;
 	}
 
-	public String generate(List<Stmt> program) {
-		// Set up frames, defining strings for boolean print values
+	/*
+	 * Writes the program to out one function at a time. Top level code is
+	 * generated first, since that declares every global a function can refer
+	 * to; after that functions only read shared state, so each is generated
+	 * by a visitor of its own, concurrently if there's a pool. They're written
+	 * in source order either way, then main, the print runtime and the data
+	 * section. With a pool, at most IN_FLIGHT_PER_WORKER functions per worker
+	 * are submitted ahead of the oldest unwritten one.
+	 */
+	public void generate(List<Stmt> program, Writer out) throws IOException {
+		// Set up frames, defining strings for the print runtime's boolean values
 		this.funcs.clear();
-		this.frames.clear();
-		this.frames.add(new AsmFrame());
-		this.frame = this.frames.get(0);
+		this.main = new AsmFrame(GlobalLayout.order(program));
+		this.frame = this.main;
 		this.frame.allocString("bool_true", "true\\n");
 		this.frame.allocString("bool_false", "false\\n");
-		this.frame.allocString("string_newline", "\\n");
 
 		// Parse functions for types
 		for (Stmt s : program) {
@@ -47,108 +111,294 @@ public final class CodegenVisitor implements Expr.Visitor<VarType>, Stmt.Visitor
 			}
 		}
 
-		// Generate frames
 		for (Stmt s : program) {
-			s.accept(this);
+			if (!(s instanceof Stmt.Function))
+				s.accept(this);
 		}
+		// Anything still buffered is printed as main returns
+		this.main.asm("jal", "_rt_flush");
 
-		// Output assembly
-		String asm = "";
-		for (AsmFrame f : this.frames) {
-			asm += f.emit();
-			asm += "\n";
+		out.write(".text\n.globl main\n\n");
+		// Only a few functions are in flight, so a slow one holds back a bounded amount of finished code
+		Deque<ForkJoinTask<List<MipsInstr>>> tasks = new ArrayDeque<>();
+		int inFlight = this.pool == null ? 0 : IN_FLIGHT_PER_WORKER * this.pool.getParallelism();
+		for (Stmt s : program) {
+			if (s instanceof Stmt.Function f) {
+				if (this.pool == null) {
+					MipsInstr.write(this.function(f), out);
+					continue;
+				}
+				if (tasks.size() >= inFlight)
+					MipsInstr.write(tasks.removeFirst().join(), out);
+				tasks.addLast(this.pool.submit(() -> this.function(f)));
+			}
 		}
+		while (!tasks.isEmpty())
+			MipsInstr.write(tasks.removeFirst().join(), out);
+		MipsInstr.write(this.finish(this.main), out);
+		List<MipsInstr> runtime = PrintRuntime.text();
+		if (this.scheduler != null)
+			this.scheduler.run(runtime);
+		MipsInstr.write(runtime, out);
+
+		List<MipsInstr> data = new ArrayList<>();
+		this.main.emitData(data);
+		data.addAll(PrintRuntime.data());
+		MipsInstr.write(data, out);
+	}
+
+	private List<MipsInstr> function(Stmt.Function f) {
+		CodegenVisitor v = new CodegenVisitor(this);
+		f.accept(v);
+		return v.finished;
+	}
 
-		return asm;
+	private List<MipsInstr> finish(AsmFrame f) {
+		List<MipsInstr> code = new ArrayList<>();
+		f.emit(code);
+		code.add(MipsInstr.directive(""));
+		if (this.peephole != null)
+			this.peephole.run(code);
+		if (this.scheduler != null)
+			this.scheduler.run(code);
+		return code;
 	}
 
 	@Override
 	public VarType visitBinaryExpr(Binary expr) {
-		expr.left.accept(this);
-		expr.right.accept(this);
+		if (!this.multiplyByConstant(expr) && !this.divideByConstant(expr) && !this.select(expr))
+			this.registers(expr);
+		switch (expr.operator) {
+			case PLUS:
+			case MINUS:
+			case MULTIPLY:
+			case DIVIDE:
+				return VarType.INT;
+			default:
+				return VarType.BOOL;
+		}
+	}
 
-		this.pop("$t1"); // Right
-		this.pop("$t0"); // Left
+	// Both operands evaluated into registers, for whatever no pattern covers
+	private void registers(Binary expr) {
+		String[] operands = this.operands(expr);
+		String left = operands[0];
+		String right = operands[1];
+		// The result goes in an operand register from the pool
+		String dst = POOL.contains(left) ? left : right;
+		String other = dst.equals(left) ? right : left;
 		switch (expr.operator) {
 			case AND:
-				this.frame.asm("and $t2, $t0, $t1");
+				this.frame.asm("and", dst, left, right);
 				break;
 			case DIVIDE:
-				this.frame.asm("div $t0, $t1");
-				this.frame.asm("mflo $t2");
+				this.frame.asm("div", left, right);
+				this.frame.asm("mflo", dst);
 				break;
 			case EQUAL:
-				this.frame.asm("seq $t2, $t0, $t1");
+				this.frame.asm("seq", dst, left, right);
 				break;
 			case GREATER:
-				this.frame.asm("sgt $t2, $t0, $t1");
+				this.frame.asm("sgt", dst, left, right);
 				break;
 			case GREATER_EQUAL:
-				this.frame.asm("sge $t2, $t0, $t1");
+				this.frame.asm("sge", dst, left, right);
 				break;
 			case LESS:
-				this.frame.asm("slt $t2, $t0, $t1");
+				this.frame.asm("slt", dst, left, right);
 				break;
 			case LESS_EQUAL:
-				this.frame.asm("sle $t2, $t0, $t1");
+				this.frame.asm("sle", dst, left, right);
 				break;
 			case MINUS:
-				this.frame.asm("sub $t2, $t0, $t1");
+				this.frame.asm("subu", dst, left, right);
 				break;
 			case MULTIPLY:
-				this.frame.asm("mult $t0, $t1");
-				this.frame.asm("mflo $t2");
+				this.frame.asm("mult", left, right);
+				this.frame.asm("mflo", dst);
 				break;
 			case NOT_EQUAL:
-				this.frame.asm("sne $t2, $t0, $t1");
+				this.frame.asm("sne", dst, left, right);
 				break;
 			case OR:
-				this.frame.asm("or $t2, $t0, $t1");
+				this.frame.asm("or", dst, left, right);
 				break;
 			case PLUS:
-				this.frame.asm("add $t2, $t0, $t1");
+				this.frame.asm("addu", dst, left, right);
 				break;
 			default:
 				throw new Error("Invalid binary op");
 
 		}
-		this.push("$t2");
+		if (POOL.contains(other))
+			this.release(other);
+		this.result = dst;
+	}
 
-		return VarType.INT;
+	// Covers expr with the first pattern from Patterns that matches it, if any
+	private boolean select(Expr expr) {
+		Patterns.Match m = Patterns.match(expr);
+		if (m == null)
+			return false;
+		String r = this.eval(m.operand());
+		for (MipsInstr in : m.pattern().expand(r, r, m.k()))
+			this.frame.asm(in);
+		this.result = r;
+		return true;
+	}
+
+	// x * k as shifts and an add or subtract, when that beats mult
+	private boolean multiplyByConstant(Binary expr) {
+		if (expr.operator != Operator.MULTIPLY)
+			return false;
+		Expr x = expr.left instanceof Literal ? expr.right : expr.left;
+		Expr k = x == expr.left ? expr.right : expr.left;
+		if (!(k instanceof Literal l && l.value instanceof Integer c))
+			return false;
+		StrengthReduction.Shifts s = StrengthReduction.shifts(c);
+		if (s == null)
+			return false;
+
+		String r = this.eval(x);
+		String high = Integer.toString(s.high());
+		if (s.low() < 0) {
+			if (s.high() > 0)
+				this.frame.asm("sll", r, r, high);
+		} else {
+			this.frame.asm("sll", "$t1", r, high);
+			if (s.low() > 0)
+				this.frame.asm("sll", r, r, Integer.toString(s.low()));
+			this.frame.asm(s.subtract() ? "subu" : "addu", r, "$t1", r);
+		}
+		if (s.negate())
+			this.frame.asm("negu", r, r);
+		this.result = r;
+		return true;
+	}
+
+	// x / d without div, rounding toward zero like div does
+	private boolean divideByConstant(Binary expr) {
+		if (expr.operator != Operator.DIVIDE || !(expr.right instanceof Literal l && l.value instanceof Integer d)
+				|| d == 0)
+			return false;
+		String r = this.eval(expr.left);
+		this.result = r;
+		if (d == 1)
+			return true;
+		if (d == -1) {
+			this.frame.asm("negu", r, r);
+			return true;
+		}
+		if (Integer.bitCount(d) == 1 || Integer.bitCount(-d) == 1) {
+			// Add 2^s - 1 to negative dividends so the shift rounds toward zero
+			int s = Integer.numberOfTrailingZeros(d);
+			if (s == 1) {
+				this.frame.asm("srl", "$t1", r, "31");
+			} else {
+				this.frame.asm("sra", "$t1", r, "31");
+				this.frame.asm("srl", "$t1", "$t1", Integer.toString(32 - s));
+			}
+			this.frame.asm("addu", r, r, "$t1");
+			this.frame.asm("sra", r, r, Integer.toString(s));
+			if (d < 0)
+				this.frame.asm("negu", r, r);
+			return true;
+		}
+
+		StrengthReduction.Magic m = StrengthReduction.magic(d);
+		this.frame.asm("li", "$t1", Integer.toString(m.multiplier()));
+		this.frame.asm("mult", r, "$t1");
+		this.frame.asm("mfhi", "$t1");
+		if (d > 0 && m.multiplier() < 0)
+			this.frame.asm("addu", "$t1", "$t1", r);
+		else if (d < 0 && m.multiplier() > 0)
+			this.frame.asm("subu", "$t1", "$t1", r);
+		if (m.shift() > 0)
+			this.frame.asm("sra", "$t1", "$t1", Integer.toString(m.shift()));
+		// Truncating toward zero means one more for a negative quotient
+		this.frame.asm("srl", r, "$t1", "31");
+		this.frame.asm("addu", r, "$t1", r);
+		return true;
+	}
+
+	// Evaluates both operands into registers, returned as {left, right}; the pool ones must be released
+	private String[] operands(Binary expr) {
+		// Sethi-Ullman: evaluating the side needing more registers first keeps the peak lowest
+		boolean rightFirst = this.canReorder(expr)
+				&& (hasCall(expr.right) && !hasCall(expr.left) || need(expr.right) > need(expr.left));
+		Expr first = rightFirst ? expr.right : expr.left;
+		Expr second = rightFirst ? expr.left : expr.right;
+
+		String a = this.eval(first);
+		boolean spilled = false;
+		if (need(second) > this.free.size()) {
+			// Not enough registers for the other side, so park this value on the stack
+			this.push(a);
+			this.release(a);
+			spilled = true;
+		}
+		String b = this.eval(second);
+		if (spilled) {
+			this.pop("$t0");
+			a = "$t0";
+		}
+		return rightFirst ? new String[] { b, a } : new String[] { a, b };
 	}
 
 	@Override
 	public VarType visitCallExpr(Call expr) {
-		// Load in args
+		// The callee is free to use every pool register, so save the ones in use
+		List<String> saved = new ArrayList<>(this.busy);
+		for (String r : saved) {
+			this.push(r);
+			this.release(r);
+		}
+		// Evaluate args left to right, holding the register ones in the pool until all are done
+		List<String> args = new ArrayList<>();
+		int stacked = 0;
 		for (Expr e : expr.arguments) {
-			e.accept(this);
+			String r = this.eval(e);
+			if (args.size() < AsmFrame.ARG_REGISTERS.size()) {
+				args.add(r);
+			} else {
+				this.push(r);
+				this.release(r);
+				stacked++;
+			}
+		}
+		for (int i = 0; i < args.size(); i++) {
+			this.frame.asm("move", AsmFrame.ARG_REGISTERS.get(i), args.get(i));
+			this.release(args.get(i));
 		}
 		// Call Function
-		this.frame.asm("jal _" + expr.name);
-		// Pop args
-		for (int i = 0; i < expr.arguments.size(); i++) {
-			this.pop("$t0");
+		this.frame.asm("jal", "_" + expr.name);
+		// Drop stack args
+		if (stacked > 0)
+			this.frame.asm("addu", "$sp", "$sp", Integer.toString(4 * stacked));
+		// Restore saved registers, then take one for the return value
+		for (int i = saved.size() - 1; i >= 0; i--) {
+			this.take(saved.get(i));
+			this.pop(saved.get(i));
 		}
-		// Push return value
-		this.push("$v0");
+		this.result = this.alloc();
+		this.frame.asm("move", this.result, "$v0");
 
 		return this.funcs.get(expr.name).returnType;
 	}
 
 	@Override
 	public VarType visitLiteralExpr(Literal expr) {
+		this.result = this.alloc();
 		if (expr.value instanceof Integer) {
-			this.frame.asm("li $t0, " + (Integer) expr.value);
-			this.push("$t0");
+			this.frame.asm("li", this.result, expr.value.toString());
 			return VarType.INT;
 		} else if (expr.value instanceof Boolean) {
 			Boolean v = (Boolean) expr.value;
 			if (v) {
-				this.frame.asm("li $t0, 1");
+				this.frame.asm("li", this.result, "1");
 			} else {
-				this.frame.asm("li $t0, 0");
+				this.frame.asm("li", this.result, "0");
 			}
-			this.push("$t0");
 			return VarType.BOOL;
 		} else {
 			throw new Error("Unknown literal type");
@@ -157,40 +407,183 @@ public final class CodegenVisitor implements Expr.Visitor<VarType>, Stmt.Visitor
 
 	@Override
 	public VarType visitUnaryExpr(Unary expr) {
-		VarType t;
-		expr.right.accept(this);
-		this.pop("$t0");
-
-		switch (expr.operator) {
-			case MINUS:
-				this.frame.asm("li $t1, 0");
-				t = VarType.INT;
-				break;
-			case NOT:
-				this.frame.asm("li $t1, 1");
-				t = VarType.BOOL;
-				break;
-			default:
-				throw new Error("Unknown unary op");
-		}
-		this.frame.asm("sub $t2, $t1, $t0");
-		this.push("$t2");
-
-		return t;
+		// Both unary operators are a single instruction from the pattern table
+		if (!this.select(expr))
+			throw new Error("Unknown unary op");
+		return expr.operator == Operator.MINUS ? VarType.INT : VarType.BOOL;
 	}
 
 	@Override
 	public VarType visitVariableExpr(Variable expr) {
-		this.frame.asm("lw $t0, " + this.frame.getVar(expr.name));
-		this.push("$t0");
+		this.result = this.alloc();
+		this.load(this.result, expr.name);
 		return this.frame.getVarType(expr.name);
 	}
 
+	// ---------- Register pool ----------
+
+	// Evaluates e and returns the pool register holding its value; the caller must release it
+	private String eval(Expr e) {
+		e.accept(this);
+		return this.result;
+	}
+
+	private String alloc() {
+		String r = this.free.pollFirst();
+		if (r == null)
+			throw new Error("Out of expression registers");
+		this.busy.add(r);
+		return r;
+	}
+
+	private void take(String r) {
+		this.free.remove(r);
+		this.busy.add(r);
+	}
+
+	private void release(String r) {
+		this.busy.remove(r);
+		this.free.addFirst(r);
+	}
+
+	// Registers needed to evaluate e without touching the stack (its Sethi-Ullman number)
+	static int need(Expr e) {
+		if (e instanceof Binary b) {
+			int l = need(b.left);
+			int r = need(b.right);
+			return l == r ? l + 1 : Math.max(l, r);
+		} else if (e instanceof Unary u) {
+			return need(u.right);
+		}
+		// Leaves, and calls, which start from an empty pool
+		return 1;
+	}
+
+	static boolean hasCall(Expr e) {
+		if (e instanceof Call)
+			return true;
+		if (e instanceof Binary b)
+			return hasCall(b.left) || hasCall(b.right);
+		if (e instanceof Unary u)
+			return hasCall(u.right);
+		return false;
+	}
+
+	/*
+	 * The right side may only go first when that can't be observed: either
+	 * neither side calls a function, or the left side can't trap and reads no
+	 * globals that the call on the right could change.
+	 */
+	private boolean canReorder(Binary expr) {
+		if (!hasCall(expr.left) && !hasCall(expr.right))
+			return true;
+		return this.isMovable(expr.left);
+	}
+
+	private boolean isMovable(Expr e) {
+		if (e instanceof Literal)
+			return true;
+		if (e instanceof Variable v)
+			return !this.frame.isGlobal(v.name);
+		if (e instanceof Unary u)
+			return this.isMovable(u.right);
+		if (e instanceof Binary b) {
+			if (b.operator == Operator.DIVIDE && !(b.right instanceof Literal l && !l.value.equals(0)))
+				return false;
+			return this.isMovable(b.left) && this.isMovable(b.right);
+		}
+		return false;
+	}
+
+	// ---------- Conditions ----------
+
+	/*
+	 * Jumps to target when cond evaluates to when, and falls through
+	 * otherwise. && and || only test their right side when the left side
+	 * doesn't settle the result, and never build the 0/1 value. The
+	 * interpreter evaluates both sides though, so a right side with a call in
+	 * it is evaluated as a value like any other expression.
+	 */
+	private void branch(Expr cond, boolean when, String target) {
+		if (cond instanceof Literal l && l.value instanceof Boolean b) {
+			if (b == when)
+				this.frame.asm("j", target);
+			return;
+		}
+		if (cond instanceof Unary u && u.operator == Operator.NOT) {
+			this.branch(u.right, !when, target);
+			return;
+		}
+		if (cond instanceof Binary b && (b.operator == Operator.AND || b.operator == Operator.OR)
+				&& !hasCall(b.right)) {
+			// The value the left side must have for the right side to decide the result
+			boolean decides = b.operator == Operator.AND;
+			if (when != decides) {
+				// Either side alone having the value jumps
+				this.branch(b.left, when, target);
+				this.branch(b.right, when, target);
+			} else {
+				String skip = this.frame.getLabel("skip");
+				this.branch(b.left, !decides, skip);
+				this.branch(b.right, when, target);
+				this.frame.putLabel(skip);
+			}
+			return;
+		}
+		if (cond instanceof Binary b && BRANCH.containsKey(b.operator)) {
+			this.compareAndBranch(b, when, target);
+			return;
+		}
+		String r = this.eval(cond);
+		this.release(r);
+		this.frame.asm(when ? "bnez" : "beqz", r, target);
+	}
+
+	// Branch taken when the comparison holds, and the one taken when it doesn't
+	private static final Map<Operator, String[]> BRANCH = Map.of(
+			Operator.LESS, new String[] { "blt", "bge" },
+			Operator.LESS_EQUAL, new String[] { "ble", "bgt" },
+			Operator.GREATER, new String[] { "bgt", "ble" },
+			Operator.GREATER_EQUAL, new String[] { "bge", "blt" },
+			Operator.EQUAL, new String[] { "beq", "bne" },
+			Operator.NOT_EQUAL, new String[] { "bne", "beq" });
+	// The same comparison with its operands swapped
+	private static final Map<String, String> MIRROR = Map.of(
+			"blt", "bgt", "bgt", "blt", "ble", "bge", "bge", "ble", "beq", "beq", "bne", "bne");
+
+	// A relational condition becomes a single branch, with an int literal operand used as an immediate
+	private void compareAndBranch(Binary cond, boolean when, String target) {
+		String op = BRANCH.get(cond.operator)[when ? 0 : 1];
+		Expr left = cond.left;
+		Expr right = cond.right;
+		if (left instanceof Literal && !(right instanceof Literal)) {
+			op = MIRROR.get(op);
+			left = cond.right;
+			right = cond.left;
+		}
+
+		if (right instanceof Literal l && l.value instanceof Integer imm) {
+			String r = this.eval(left);
+			this.release(r);
+			if (imm == 0)
+				this.frame.asm(op + "z", r, target);
+			else
+				this.frame.asm(op, r, imm.toString(), target);
+			return;
+		}
+
+		String[] operands = this.operands(cond);
+		for (String r : operands)
+			if (POOL.contains(r))
+				this.release(r);
+		this.frame.asm(op, operands[0], operands[1], target);
+	}
+
 	@Override
 	public Void visitAssignStmt(Assign stmt) {
-		stmt.value.accept(this);
-		this.pop("$t0");
-		this.frame.asm("sw $t0, " + this.frame.getVar(stmt.name));
+		String r = this.eval(stmt.value);
+		this.store(r, stmt.name);
+		this.release(r);
 		return null;
 	}
 
@@ -209,40 +602,38 @@ public final class CodegenVisitor implements Expr.Visitor<VarType>, Stmt.Visitor
 
 	@Override
 	public Void visitExpressionStmt(Expression stmt) {
-		stmt.expression.accept(this);
-		this.pop("$t0");
+		this.release(this.eval(stmt.expression));
 
 		return null;
 	}
 
 	@Override
 	public Void visitFunctionStmt(Function stmt) {
-		this.frames.add(new AsmFrame(stmt, this.frame));
-		this.frame = this.frames.getLast();
+		boolean argsInRegisters = true;
+		for (Stmt s : stmt.body)
+			argsInRegisters &= !clobbersArgs(s);
+		this.frame = new AsmFrame(stmt, this.main, argsInRegisters);
 
 		for (Stmt s : stmt.body) {
 			s.accept(this);
 		}
 
-		this.frame = this.frames.getFirst();
+		this.finished = this.finish(this.frame);
+		this.frame = this.main;
 
 		return null;
 	}
 
 	@Override
 	public Void visitIfStmt(If stmt) {
-		stmt.condition.accept(this);
-		this.pop("$t0");
-		this.frame.asm("li $t1, 0");
-
 		String elseLabel = this.frame.getLabel("else");
 		String finalLabel = this.frame.getLabel("final");
 
-		// Branch to else if we're false (== 0)
-		this.frame.asm("beq $t0, $t1, " + elseLabel);
+		// Branch to else if we're false
+		this.branch(stmt.condition, false, elseLabel);
 		// Continue through body if otherwise, and branch to final
 		stmt.thenBranch.accept(this);
-		this.frame.asm("j " + finalLabel);
+		this.frame.asm("j", finalLabel);
 		// Else branch
 		this.frame.putLabel(elseLabel);
 		if (stmt.elseBranch != null) {
@@ -257,24 +648,15 @@ public final class CodegenVisitor implements Expr.Visitor<VarType>, Stmt.Visitor
 	@Override
 	public Void visitPrintStmt(Print stmt) {
 		VarType t = stmt.expression.accept(this);
+		String r = this.result;
+		this.release(r);
 
 		if (t == VarType.INT) {
-			this.pop("$a0");
-			this.frame.asm("li $v0, 1");
-			this.frame.asm("syscall");
-			this.frame.asm("la $a0, _string_newline");
-			this.frame.asm("li $v0, 4");
-			this.frame.asm("syscall");
+			this.frame.asm("move", "$a0", r);
+			this.frame.asm("jal", "_rt_print_int");
 		} else if (t == VarType.BOOL) {
-			this.pop("$t0");
-			this.frame.asm("li $t1, 1");
-			this.frame.asm("la $a0, _bool_true");
-			String label = this.frame.getLabel("print_true");
-			this.frame.asm("beq $t0, $t1, " + label);
-			this.frame.asm("la $a0, _bool_false");
-			this.frame.putLabel(label);
-			this.frame.asm("li $v0, 4");
-			this.frame.asm("syscall");
+			this.frame.asm("move", "$a0", r);
+			this.frame.asm("jal", "_rt_print_bool");
 		} else {
 			throw new Error("Unknown var type for print");
 		}
@@ -285,9 +667,13 @@ public final class CodegenVisitor implements Expr.Visitor<VarType>, Stmt.Visitor
 	@Override
 	public Void visitReturnStmt(Return stmt) {
 		if (stmt.value != null) {
-			stmt.value.accept(this);
-			this.pop("$v0");
-			this.frame.asm("j " + this.frame.getReturnLabel());
+			String r = this.eval(stmt.value);
+			this.release(r);
+			this.frame.asm("move", "$v0", r);
+			// Leaving any promoting loops, so their globals go back to memory
+			for (String g : this.written)
+				this.frame.asm("sw", this.promoted.get(g), this.frame.getVar(g));
+			this.frame.asm("j", this.frame.getReturnLabel());
 		}
 		return null;
 	}
@@ -296,9 +682,9 @@ public final class CodegenVisitor implements Expr.Visitor<VarType>, Stmt.Visitor
 	public Void visitVarStmt(Var stmt) {
 		this.frame.allocVar(stmt.name, stmt.type);
 		if (stmt.initializer != null) {
-			stmt.initializer.accept(this);
-			this.pop("$t0");
-			this.frame.asm("sw $t0, " + this.frame.getVar(stmt.name));
+			String r = this.eval(stmt.initializer);
+			this.release(r);
+			this.store(r, stmt.name);
 		}
 
 		return null;
@@ -308,28 +694,121 @@ public final class CodegenVisitor implements Expr.Visitor<VarType>, Stmt.Visitor
 	public Void visitWhileStmt(While stmt) {
 		String whileLabel = this.frame.getLabel("while");
 		String finalLabel = this.frame.getLabel("final");
+		List<String> promoted = this.promote(stmt);
 
+		// Rotated into a guarded do-while, so each iteration ends in one conditional branch back
+		this.branch(stmt.condition, false, finalLabel);
 		this.frame.putLabel(whileLabel);
-		stmt.condition.accept(this);
-		this.pop("$t0");
-		this.frame.asm("li $t1, 0");
-		this.frame.asm("beq $t0, $t1, " + finalLabel);
 
 		stmt.body.accept(this);
-		this.frame.asm("j " + whileLabel);
+		this.branch(stmt.condition, true, whileLabel);
 
 		this.frame.putLabel(finalLabel);
+		this.demote(promoted);
 
 		return null;
 	}
 
+	/*
+	 * Loads the globals loop uses most into free $s registers, if it makes no
+	 * calls, and returns their names. Globals some block in the loop declares
+	 * a local over are left alone, so inside the loop a promoted name always
+	 * means the global.
+	 */
+	private List<String> promote(While loop) {
+		Deque<String> calls = new ArrayDeque<>();
+		DeadCodeEliminator.collectCalls(loop, calls);
+		if (!calls.isEmpty())
+			return List.of();
+		Set<String> declared = new HashSet<>();
+		LoopInvariantMotion.collectDeclared(loop.body, declared);
+		Set<String> assigned = new HashSet<>();
+		ConstantFolder.collectAssigned(loop.body, assigned);
+
+		Map<String, Long> uses = GlobalLayout.uses(loop);
+		List<String> globals = new ArrayList<>();
+		for (String g : uses.keySet()) {
+			if (this.frame.isGlobal(g) && !declared.contains(g) && !this.promoted.containsKey(g))
+				globals.add(g);
+		}
+		globals.sort(Comparator.comparingLong((String g) -> -uses.get(g)).thenComparing(Comparator.naturalOrder()));
+		List<String> chosen = globals.subList(0, Math.min(globals.size(), PROMOTE.size() - this.promoted.size()));
+
+		for (String g : chosen) {
+			String reg = PROMOTE.get(this.promoted.size());
+			this.frame.asm("lw", reg, this.frame.getVar(g));
+			this.promoted.put(g, reg);
+			if (assigned.contains(g))
+				this.written.add(g);
+		}
+		return chosen;
+	}
+
+	// Stores back whatever the loop assigned of the globals promote() gave it
+	private void demote(List<String> globals) {
+		for (String g : globals) {
+			if (this.written.remove(g))
+				this.frame.asm("sw", this.promoted.get(g), this.frame.getVar(g));
+			this.promoted.remove(g);
+		}
+	}
+
+	// Where a variable lives: a register, if it has one, else its address
+	private String location(String name) {
+		String reg = this.promoted.get(name);
+		return reg != null ? reg : this.frame.getVar(name);
+	}
+
+	private void load(String reg, String name) {
+		String var = this.location(name);
+		if (var.startsWith("$"))
+			this.frame.asm("move", reg, var);
+		else
+			this.frame.asm("lw", reg, var);
+	}
+
+	private void store(String reg, String name) {
+		String var = this.location(name);
+		if (var.startsWith("$"))
+			this.frame.asm("move", var, reg);
+		else
+			this.frame.asm("sw", reg, var);
+	}
+
+	// Whether s may overwrite the argument registers, with a call or with a print's syscall
+	static boolean clobbersArgs(Stmt s) {
+		if (s instanceof Stmt.Print)
+			return true;
+		if (s instanceof Stmt.Block b) {
+			for (Stmt c : b.statements) {
+				if (clobbersArgs(c))
+					return true;
+			}
+			return false;
+		}
+		if (s instanceof Stmt.If i)
+			return hasCall(i.condition) || clobbersArgs(i.thenBranch)
+					|| i.elseBranch != null && clobbersArgs(i.elseBranch);
+		if (s instanceof Stmt.While w)
+			return hasCall(w.condition) || clobbersArgs(w.body);
+		if (s instanceof Stmt.Expression e)
+			return hasCall(e.expression);
+		if (s instanceof Stmt.Assign a)
+			return hasCall(a.value);
+		if (s instanceof Stmt.Var v)
+			return v.initializer != null && hasCall(v.initializer);
+		if (s instanceof Stmt.Return r)
+			return r.value != null && hasCall(r.value);
+		return false;
+	}
+
 	public void pop(String reg) {
-		this.frame.asm("lw " + reg + ", 4($sp)");
-		this.frame.asm("addu $sp, $sp, 4");
+		this.frame.asm("lw", reg, "4($sp)");
+		this.frame.asm("addu", "$sp", "$sp", "4");
 	}
 
 	public void push(String reg) {
-		this.frame.asm("sw " + reg + ", ($sp)");
-		this.frame.asm("subu $sp, $sp, 4");
+		this.frame.asm("sw", reg, "($sp)");
+		this.frame.asm("subu", "$sp", "$sp", "4");
 	}
 }
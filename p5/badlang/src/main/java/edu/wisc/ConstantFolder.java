@@ -0,0 +1,377 @@
+package edu.wisc;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Optimization pass run after the {@link Checker}. Folds constant unary and
+ * binary expressions using Java's 32-bit int arithmetic, which wraps like the
+ * interpreter and like the non-trapping adds, subtracts and multiplies both
+ * backends emit. Also applies algebraic identities, and propagates constants
+ * through variables that are never reassigned. Division by a constant zero
+ * is left alone so the error still happens at runtime.
+ */
+class ConstantFolder implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+	// Marks a name that shadows an outer constant but isn't one itself
+	private static final Object NOT_CONST = new Object();
+
+	private final List<Map<String, Object>> scopes = new ArrayList<>();
+	// Lookups don't go below this scope, so function bodies never see global constants
+	private int scopeFloor = 0;
+	private Set<String> assigned = new HashSet<>();
+
+	public List<Stmt> fold(List<Stmt> program) {
+		Set<String> globalAssigned = new HashSet<>();
+		for (Stmt s : program)
+			collectAssigned(s, globalAssigned);
+
+		this.scopes.clear();
+		this.scopeFloor = 0;
+		this.assigned = globalAssigned;
+		this.enterScope();
+
+		List<Stmt> out = new ArrayList<>();
+		for (Stmt s : program) {
+			out.add(s.accept(this));
+		}
+
+		this.exitScope();
+		return out;
+	}
+
+	// ---------- Helpers ----------
+
+	// No calls, and no division that might be by zero, so dropping e can't lose an effect or an error
+	static boolean isPure(Expr e) {
+		if (e instanceof Expr.Call)
+			return false;
+		if (e instanceof Expr.Binary b) {
+			if (b.operator == Operator.DIVIDE && !(b.right instanceof Expr.Literal l && !l.value.equals(0)))
+				return false;
+			return isPure(b.left) && isPure(b.right);
+		}
+		if (e instanceof Expr.Unary u)
+			return isPure(u.right);
+		return true;
+	}
+
+	static boolean isConst(Expr e, Object value) {
+		return e instanceof Expr.Literal l && l.value.equals(value);
+	}
+
+	// Names that are the target of an assignment anywhere inside s
+	static void collectAssigned(Stmt s, Set<String> names) {
+		if (s instanceof Stmt.Assign a) {
+			names.add(a.name);
+		} else if (s instanceof Stmt.Block b) {
+			for (Stmt c : b.statements)
+				collectAssigned(c, names);
+		} else if (s instanceof Stmt.Function f) {
+			for (Stmt c : f.body)
+				collectAssigned(c, names);
+		} else if (s instanceof Stmt.If i) {
+			collectAssigned(i.thenBranch, names);
+			if (i.elseBranch != null)
+				collectAssigned(i.elseBranch, names);
+		} else if (s instanceof Stmt.While w) {
+			collectAssigned(w.body, names);
+		}
+	}
+
+	private void enterScope() {
+		this.scopes.add(new HashMap<>());
+	}
+
+	private void exitScope() {
+		this.scopes.remove(this.scopes.size() - 1);
+	}
+
+	private void declare(String name, Object value) {
+		this.scopes.get(this.scopes.size() - 1).put(name, value);
+	}
+
+	private Object lookup(String name) {
+		for (int i = this.scopes.size() - 1; i >= this.scopeFloor; i--) {
+			Object v = this.scopes.get(i).get(name);
+			if (v != null)
+				return v;
+		}
+		return NOT_CONST;
+	}
+
+	private Stmt scoped(Stmt s) {
+		if (s == null)
+			return null;
+		this.enterScope();
+		Stmt ret = s.accept(this);
+		this.exitScope();
+		return ret;
+	}
+
+	// ---------- Statements ----------
+
+	@Override
+	public Stmt visitBlockStmt(Stmt.Block stmt) {
+		this.enterScope();
+		List<Stmt> body = new ArrayList<>();
+		for (Stmt s : stmt.statements)
+			body.add(s.accept(this));
+		this.exitScope();
+		return new Stmt.Block(body, stmt.line);
+	}
+
+	@Override
+	public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+		return new Stmt.Expression(stmt.expression.accept(this), stmt.line);
+	}
+
+	@Override
+	public Stmt visitFunctionStmt(Stmt.Function stmt) {
+		Set<String> oldAssigned = this.assigned;
+		int oldFloor = this.scopeFloor;
+		this.assigned = new HashSet<>();
+		for (Stmt s : stmt.body)
+			collectAssigned(s, this.assigned);
+		this.enterScope();
+		this.scopeFloor = this.scopes.size() - 1;
+		for (var p : stmt.params)
+			this.declare(p.name(), NOT_CONST);
+
+		List<Stmt> body = new ArrayList<>();
+		for (Stmt s : stmt.body)
+			body.add(s.accept(this));
+
+		this.exitScope();
+		this.scopeFloor = oldFloor;
+		this.assigned = oldAssigned;
+		return new Stmt.Function(stmt.name, stmt.returnType, stmt.params, body, stmt.line);
+	}
+
+	@Override
+	public Stmt visitIfStmt(Stmt.If stmt) {
+		return new Stmt.If(stmt.condition.accept(this), this.scoped(stmt.thenBranch), this.scoped(stmt.elseBranch),
+				stmt.line);
+	}
+
+	@Override
+	public Stmt visitPrintStmt(Stmt.Print stmt) {
+		return new Stmt.Print(stmt.expression.accept(this), stmt.line);
+	}
+
+	@Override
+	public Stmt visitReturnStmt(Stmt.Return stmt) {
+		if (stmt.value == null)
+			return stmt;
+		return new Stmt.Return(stmt.value.accept(this), stmt.line);
+	}
+
+	@Override
+	public Stmt visitVarStmt(Stmt.Var stmt) {
+		Expr init = stmt.initializer == null ? null : stmt.initializer.accept(this);
+		if (init instanceof Expr.Literal l && !this.assigned.contains(stmt.name)) {
+			this.declare(stmt.name, l.value);
+		} else {
+			this.declare(stmt.name, NOT_CONST);
+		}
+		return new Stmt.Var(stmt.name, stmt.type, init, stmt.line);
+	}
+
+	@Override
+	public Stmt visitAssignStmt(Stmt.Assign stmt) {
+		return new Stmt.Assign(stmt.name, stmt.value.accept(this), stmt.line);
+	}
+
+	@Override
+	public Stmt visitWhileStmt(Stmt.While stmt) {
+		return new Stmt.While(stmt.condition.accept(this), this.scoped(stmt.body), stmt.line);
+	}
+
+	// ---------- Expressions ----------
+
+	@Override
+	public Expr visitBinaryExpr(Expr.Binary expr) {
+		Expr left = expr.left.accept(this);
+		Expr right = expr.right.accept(this);
+		int line = expr.line;
+
+		if (left instanceof Expr.Literal l && right instanceof Expr.Literal r) {
+			Object v = evalBinary(expr.operator, l.value, r.value);
+			if (v != null)
+				return new Expr.Literal(v, line);
+		}
+
+		switch (expr.operator) {
+			case PLUS:
+				if (isConst(right, 0))
+					return left;
+				if (isConst(left, 0))
+					return right;
+				break;
+			case MINUS:
+				if (isConst(right, 0))
+					return left;
+				if (isConst(left, 0))
+					return new Expr.Unary(Operator.MINUS, right, line).accept(this);
+				if (left instanceof Expr.Variable a && right instanceof Expr.Variable b && a.name.equals(b.name))
+					return new Expr.Literal(0, line);
+				break;
+			case MULTIPLY:
+				if (isConst(right, 1))
+					return left;
+				if (isConst(left, 1))
+					return right;
+				if (isConst(right, 0) && isPure(left) || isConst(left, 0) && isPure(right))
+					return new Expr.Literal(0, line);
+				if (isConst(right, -1))
+					return new Expr.Unary(Operator.MINUS, left, line).accept(this);
+				if (isConst(left, -1))
+					return new Expr.Unary(Operator.MINUS, right, line).accept(this);
+				break;
+			case DIVIDE:
+				if (isConst(right, 1))
+					return left;
+				if (isConst(right, -1))
+					return new Expr.Unary(Operator.MINUS, left, line).accept(this);
+				break;
+			case AND:
+				// Both sides are always evaluated, so the other side must be pure to drop it
+				if (isConst(left, true) || isConst(right, true))
+					return isConst(left, true) ? right : left;
+				if (isConst(left, false) && isPure(right) || isConst(right, false) && isPure(left))
+					return new Expr.Literal(false, line);
+				break;
+			case OR:
+				if (isConst(left, false) || isConst(right, false))
+					return isConst(left, false) ? right : left;
+				if (isConst(left, true) && isPure(right) || isConst(right, true) && isPure(left))
+					return new Expr.Literal(true, line);
+				break;
+			case EQUAL:
+				if (isConst(right, true))
+					return left;
+				if (isConst(left, true))
+					return right;
+				if (isConst(right, false))
+					return new Expr.Unary(Operator.NOT, left, line).accept(this);
+				if (isConst(left, false))
+					return new Expr.Unary(Operator.NOT, right, line).accept(this);
+				break;
+			case NOT_EQUAL:
+				if (isConst(right, false))
+					return left;
+				if (isConst(left, false))
+					return right;
+				if (isConst(right, true))
+					return new Expr.Unary(Operator.NOT, left, line).accept(this);
+				if (isConst(left, true))
+					return new Expr.Unary(Operator.NOT, right, line).accept(this);
+				break;
+			default:
+				break;
+		}
+
+		return new Expr.Binary(left, expr.operator, right, line);
+	}
+
+	// Returns null if the expression can't be folded (e.g. division by zero)
+	static Object evalBinary(Operator op, Object l, Object r) {
+		if (l instanceof Integer a && r instanceof Integer b) {
+			switch (op) {
+				case PLUS:
+					return a + b;
+				case MINUS:
+					return a - b;
+				case MULTIPLY:
+					return a * b;
+				case DIVIDE:
+					return b == 0 ? null : a / b;
+				case EQUAL:
+					return a.equals(b);
+				case NOT_EQUAL:
+					return !a.equals(b);
+				case LESS:
+					return a < b;
+				case LESS_EQUAL:
+					return a <= b;
+				case GREATER:
+					return a > b;
+				case GREATER_EQUAL:
+					return a >= b;
+				default:
+					return null;
+			}
+		} else if (l instanceof Boolean a && r instanceof Boolean b) {
+			switch (op) {
+				case AND:
+					return a && b;
+				case OR:
+					return a || b;
+				case EQUAL:
+					return a.equals(b);
+				case NOT_EQUAL:
+					return !a.equals(b);
+				default:
+					return null;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public Expr visitLiteralExpr(Expr.Literal expr) {
+		return expr;
+	}
+
+	@Override
+	public Expr visitUnaryExpr(Expr.Unary expr) {
+		Expr right = expr.right.accept(this);
+
+		if (right instanceof Expr.Literal l) {
+			if (expr.operator == Operator.MINUS && l.value instanceof Integer i)
+				return new Expr.Literal(-i, expr.line);
+			if (expr.operator == Operator.NOT && l.value instanceof Boolean b)
+				return new Expr.Literal(!b, expr.line);
+		}
+
+		// --x and !!x
+		if (right instanceof Expr.Unary u && u.operator == expr.operator)
+			return u.right;
+
+		// !(a < b) becomes a >= b, and so on
+		if (expr.operator == Operator.NOT && right instanceof Expr.Binary b) {
+			Operator inverse = switch (b.operator) {
+				case LESS -> Operator.GREATER_EQUAL;
+				case LESS_EQUAL -> Operator.GREATER;
+				case GREATER -> Operator.LESS_EQUAL;
+				case GREATER_EQUAL -> Operator.LESS;
+				case EQUAL -> Operator.NOT_EQUAL;
+				case NOT_EQUAL -> Operator.EQUAL;
+				default -> null;
+			};
+			if (inverse != null)
+				return new Expr.Binary(b.left, inverse, b.right, b.line);
+		}
+
+		return new Expr.Unary(expr.operator, right, expr.line);
+	}
+
+	@Override
+	public Expr visitVariableExpr(Expr.Variable expr) {
+		Object v = this.lookup(expr.name);
+		if (v != NOT_CONST)
+			return new Expr.Literal(v, expr.line);
+		return expr;
+	}
+
+	@Override
+	public Expr visitCallExpr(Expr.Call expr) {
+		List<Expr> args = new ArrayList<>();
+		for (Expr a : expr.arguments)
+			args.add(a.accept(this));
+		return new Expr.Call(expr.name, args, expr.line);
+	}
+}
@@ -0,0 +1,205 @@
+package edu.wisc;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Optimization pass that removes code which can never run: statements after an
+ * unconditional return, branches of ifs with a constant condition, while loops
+ * whose condition is constant false, and functions that aren't reachable from
+ * the top level statements through the call graph. Run it after the
+ * {@link ConstantFolder} so constant conditions are already literals.
+ * Visiting a statement returns its replacement, or null if it was removed.
+ */
+class DeadCodeEliminator implements Stmt.Visitor<Stmt> {
+
+	public List<Stmt> eliminate(List<Stmt> program) {
+		List<Stmt> pruned = this.statements(program);
+
+		// Walk the call graph starting from the top level code
+		Map<String, Stmt.Function> funcs = new HashMap<>();
+		for (Stmt s : pruned) {
+			if (s instanceof Stmt.Function f)
+				funcs.put(f.name, f);
+		}
+		Set<String> reachable = new HashSet<>();
+		Deque<String> work = new ArrayDeque<>();
+		for (Stmt s : pruned) {
+			if (!(s instanceof Stmt.Function))
+				collectCalls(s, work);
+		}
+		while (!work.isEmpty()) {
+			String name = work.pop();
+			if (!reachable.add(name) || !funcs.containsKey(name))
+				continue;
+			for (Stmt s : funcs.get(name).body)
+				collectCalls(s, work);
+		}
+
+		List<Stmt> out = new ArrayList<>();
+		for (Stmt s : pruned) {
+			if (s instanceof Stmt.Function f && !reachable.contains(f.name))
+				continue;
+			out.add(s);
+		}
+		return out;
+	}
+
+	// ---------- Call graph ----------
+
+	static void collectCalls(Stmt s, Deque<String> calls) {
+		if (s instanceof Stmt.Block b) {
+			for (Stmt c : b.statements)
+				collectCalls(c, calls);
+		} else if (s instanceof Stmt.Expression e) {
+			collectCalls(e.expression, calls);
+		} else if (s instanceof Stmt.Function f) {
+			for (Stmt c : f.body)
+				collectCalls(c, calls);
+		} else if (s instanceof Stmt.If i) {
+			collectCalls(i.condition, calls);
+			collectCalls(i.thenBranch, calls);
+			if (i.elseBranch != null)
+				collectCalls(i.elseBranch, calls);
+		} else if (s instanceof Stmt.Print p) {
+			collectCalls(p.expression, calls);
+		} else if (s instanceof Stmt.Return r) {
+			if (r.value != null)
+				collectCalls(r.value, calls);
+		} else if (s instanceof Stmt.Var v) {
+			if (v.initializer != null)
+				collectCalls(v.initializer, calls);
+		} else if (s instanceof Stmt.Assign a) {
+			collectCalls(a.value, calls);
+		} else if (s instanceof Stmt.While w) {
+			collectCalls(w.condition, calls);
+			collectCalls(w.body, calls);
+		}
+	}
+
+	static void collectCalls(Expr e, Deque<String> calls) {
+		if (e instanceof Expr.Binary b) {
+			collectCalls(b.left, calls);
+			collectCalls(b.right, calls);
+		} else if (e instanceof Expr.Unary u) {
+			collectCalls(u.right, calls);
+		} else if (e instanceof Expr.Call c) {
+			calls.push(c.name);
+			for (Expr a : c.arguments)
+				collectCalls(a, calls);
+		}
+	}
+
+	// ---------- Reachability ----------
+
+	// True if control can never fall through to the statement after s
+	static boolean neverCompletes(Stmt s) {
+		if (s instanceof Stmt.Return) {
+			return true;
+		} else if (s instanceof Stmt.Block b) {
+			for (Stmt c : b.statements) {
+				if (neverCompletes(c))
+					return true;
+			}
+			return false;
+		} else if (s instanceof Stmt.If i) {
+			return i.elseBranch != null && neverCompletes(i.thenBranch) && neverCompletes(i.elseBranch);
+		} else if (s instanceof Stmt.While w) {
+			// There's no break, so a while (true) can only be left by returning
+			return ConstantFolder.isConst(w.condition, true);
+		}
+		return false;
+	}
+
+	// Functions after a statement that never completes are still declared, so only they are kept
+	private List<Stmt> statements(List<Stmt> stmts) {
+		List<Stmt> out = new ArrayList<>();
+		boolean reachable = true;
+		for (Stmt s : stmts) {
+			if (!reachable && !(s instanceof Stmt.Function))
+				continue;
+			Stmt n = s.accept(this);
+			if (n == null || n instanceof Stmt.Block b && b.statements.isEmpty())
+				continue;
+			out.add(n);
+			if (neverCompletes(n))
+				reachable = false;
+		}
+		return out;
+	}
+
+	// A branch taken unconditionally still needs its own scope if it declares a variable
+	private static Stmt unwrapBranch(Stmt s) {
+		if (s instanceof Stmt.Var)
+			return new Stmt.Block(List.of(s), s.line);
+		return s;
+	}
+
+	// ---------- Statements ----------
+
+	@Override
+	public Stmt visitBlockStmt(Stmt.Block stmt) {
+		return new Stmt.Block(this.statements(stmt.statements), stmt.line);
+	}
+
+	@Override
+	public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+		return stmt;
+	}
+
+	@Override
+	public Stmt visitFunctionStmt(Stmt.Function stmt) {
+		return new Stmt.Function(stmt.name, stmt.returnType, stmt.params, this.statements(stmt.body), stmt.line);
+	}
+
+	@Override
+	public Stmt visitIfStmt(Stmt.If stmt) {
+		Stmt thenBranch = stmt.thenBranch.accept(this);
+		Stmt elseBranch = stmt.elseBranch == null ? null : stmt.elseBranch.accept(this);
+
+		if (ConstantFolder.isConst(stmt.condition, true))
+			return thenBranch == null ? null : unwrapBranch(thenBranch);
+		if (ConstantFolder.isConst(stmt.condition, false))
+			return elseBranch == null ? null : unwrapBranch(elseBranch);
+
+		if (thenBranch == null)
+			thenBranch = new Stmt.Block(new ArrayList<>(), stmt.thenBranch.line);
+		return new Stmt.If(stmt.condition, thenBranch, elseBranch, stmt.line);
+	}
+
+	@Override
+	public Stmt visitPrintStmt(Stmt.Print stmt) {
+		return stmt;
+	}
+
+	@Override
+	public Stmt visitReturnStmt(Stmt.Return stmt) {
+		return stmt;
+	}
+
+	@Override
+	public Stmt visitVarStmt(Stmt.Var stmt) {
+		return stmt;
+	}
+
+	@Override
+	public Stmt visitAssignStmt(Stmt.Assign stmt) {
+		return stmt;
+	}
+
+	@Override
+	public Stmt visitWhileStmt(Stmt.While stmt) {
+		if (ConstantFolder.isConst(stmt.condition, false))
+			return null;
+		Stmt body = stmt.body.accept(this);
+		if (body == null)
+			body = new Stmt.Block(new ArrayList<>(), stmt.body.line);
+		return new Stmt.While(stmt.condition, body, stmt.line);
+	}
+}
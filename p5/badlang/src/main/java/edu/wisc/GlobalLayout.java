@@ -0,0 +1,94 @@
+package edu.wisc;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Orders a program's global variables for the small data area, most used
+ * first, so that if they don't all fit it's the busiest ones that are
+ * addressed off $gp. Uses are counted statically, with each enclosing loop
+ * multiplying the weight of a use by LOOP_WEIGHT. Ties go by name, so the
+ * layout only depends on the program.
+ */
+class GlobalLayout {
+	private static final long LOOP_WEIGHT = 8;
+	// Deeper loops stop adding weight rather than overflow
+	private static final long MAX_WEIGHT = 1L << 50;
+
+	private final Map<String, Long> uses = new HashMap<>();
+
+	static List<String> order(List<Stmt> program) {
+		GlobalLayout layout = new GlobalLayout();
+		List<String> globals = new ArrayList<>();
+		for (Stmt s : program) {
+			if (s instanceof Stmt.Var v)
+				globals.add(v.name);
+			layout.count(s, 1);
+		}
+		globals.sort(Comparator.comparingLong((String g) -> -layout.uses.getOrDefault(g, 0L))
+				.thenComparing(Comparator.naturalOrder()));
+		return globals;
+	}
+
+	// Weighted use counts of the variables in s
+	static Map<String, Long> uses(Stmt s) {
+		GlobalLayout layout = new GlobalLayout();
+		layout.count(s, 1);
+		return layout.uses;
+	}
+
+	private void use(String name, long weight) {
+		this.uses.merge(name, weight, Long::sum);
+	}
+
+	private void count(Stmt s, long weight) {
+		if (s instanceof Stmt.Block b) {
+			for (Stmt c : b.statements)
+				this.count(c, weight);
+		} else if (s instanceof Stmt.Function f) {
+			for (Stmt c : f.body)
+				this.count(c, weight);
+		} else if (s instanceof Stmt.If i) {
+			this.count(i.condition, weight);
+			this.count(i.thenBranch, weight);
+			if (i.elseBranch != null)
+				this.count(i.elseBranch, weight);
+		} else if (s instanceof Stmt.While w) {
+			long inner = weight < MAX_WEIGHT ? weight * LOOP_WEIGHT : weight;
+			this.count(w.condition, inner);
+			this.count(w.body, inner);
+		} else if (s instanceof Stmt.Expression e) {
+			this.count(e.expression, weight);
+		} else if (s instanceof Stmt.Print p) {
+			this.count(p.expression, weight);
+		} else if (s instanceof Stmt.Return r) {
+			if (r.value != null)
+				this.count(r.value, weight);
+		} else if (s instanceof Stmt.Var v) {
+			if (v.initializer != null) {
+				this.use(v.name, weight);
+				this.count(v.initializer, weight);
+			}
+		} else if (s instanceof Stmt.Assign a) {
+			this.use(a.name, weight);
+			this.count(a.value, weight);
+		}
+	}
+
+	private void count(Expr e, long weight) {
+		if (e instanceof Expr.Variable v) {
+			this.use(v.name, weight);
+		} else if (e instanceof Expr.Binary b) {
+			this.count(b.left, weight);
+			this.count(b.right, weight);
+		} else if (e instanceof Expr.Unary u) {
+			this.count(u.right, weight);
+		} else if (e instanceof Expr.Call c) {
+			for (Expr a : c.arguments)
+				this.count(a, weight);
+		}
+	}
+}
@@ -0,0 +1,726 @@
+package edu.wisc;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Optimization pass that inlines small non-recursive functions at their call
+ * sites. Calls that make up a whole statement ({@code f(x);}, {@code int r = f(x);},
+ * {@code r = f(x);}, {@code print f(x);} and {@code return f(x);}) are replaced by
+ * a block that declares renamed copies of the parameters and locals, with each
+ * return turned into an assignment. Functions that are a single
+ * {@code return e;} are also substituted into arbitrary expressions.
+ * <p>
+ * Whether a site is inlined depends on the callee's size: the budget is larger
+ * inside loops and for functions with a single call site, and total growth of
+ * the program is capped. Callees are processed before their callers, so calls
+ * inlined into a callee are carried along.
+ */
+class Inliner implements Stmt.Visitor<Stmt>, Expr.Visitor<Expr> {
+	static final int BASE_BUDGET = 12;
+	static final int LOOP_BUDGET = 40;
+	static final int NESTED_LOOP_BUDGET = 80;
+	static final int SINGLE_SITE_BUDGET = 150;
+
+	// What we know about a (possibly already inlined into) function
+	private static class Info {
+		final Stmt.Function fun;
+		final int size;
+		// Globals the function reads or writes, which must mean the same thing at the call site
+		final Set<String> free;
+		final boolean returnInLoop;
+
+		Info(Stmt.Function fun, int size, Set<String> free, boolean returnInLoop) {
+			this.fun = fun;
+			this.size = size;
+			this.free = free;
+			this.returnInLoop = returnInLoop;
+		}
+	}
+
+	// Turns the value of an inlined return into statements
+	private interface Sink {
+		List<Stmt> accept(Expr value, int line);
+	}
+
+	private final Map<String, Stmt.Function> funcs = new HashMap<>();
+	private final Map<String, Info> infos = new HashMap<>();
+	private final Map<String, Integer> callSites = new HashMap<>();
+	private Set<String> recursive = new HashSet<>();
+	// Top level index at which each global is declared
+	private final Map<String, Integer> globalDecl = new HashMap<>();
+	private int growthLeft;
+	private int fresh;
+
+	// Context of the code currently being rewritten
+	private final List<Set<String>> scopes = new ArrayList<>();
+	private int position;
+	private int loopDepth;
+
+	public List<Stmt> inline(List<Stmt> program) {
+		this.funcs.clear();
+		this.infos.clear();
+		this.callSites.clear();
+		this.globalDecl.clear();
+		this.fresh = 0;
+
+		Map<String, Integer> funcPos = new HashMap<>();
+		int programSize = 0;
+		for (int i = 0; i < program.size(); i++) {
+			Stmt s = program.get(i);
+			programSize += size(s);
+			if (s instanceof Stmt.Function f) {
+				this.funcs.put(f.name, f);
+				funcPos.put(f.name, i);
+			} else if (s instanceof Stmt.Var v) {
+				this.globalDecl.putIfAbsent(v.name, i);
+			}
+			Deque<String> calls = new ArrayDeque<>();
+			DeadCodeEliminator.collectCalls(s, calls);
+			for (String c : calls)
+				this.callSites.merge(c, 1, Integer::sum);
+		}
+		this.growthLeft = Math.max(200, programSize);
+
+		// Rewrite callees before their callers
+		for (String name : this.calleesFirst()) {
+			Stmt.Function f = this.funcs.get(name);
+			this.position = funcPos.get(name);
+			this.loopDepth = 0;
+			this.scopes.clear();
+			this.enterScope();
+			for (var p : f.params)
+				this.declare(p.name());
+			Stmt.Function done = new Stmt.Function(f.name, f.returnType, f.params, this.statements(f.body), f.line);
+			this.exitScope();
+			this.funcs.put(name, done);
+			this.infos.put(name, this.info(done));
+		}
+
+		// Then the top level code, where declarations at depth 0 are globals
+		List<Stmt> out = new ArrayList<>();
+		this.scopes.clear();
+		this.loopDepth = 0;
+		for (int i = 0; i < program.size(); i++) {
+			this.position = i;
+			Stmt s = program.get(i);
+			if (s instanceof Stmt.Function f) {
+				out.add(this.funcs.get(f.name));
+			} else {
+				out.addAll(this.statements(List.of(s)));
+			}
+		}
+		return out;
+	}
+
+	// ---------- Call graph ----------
+
+	// Orders functions so callees come before callers, and records which ones are recursive
+	private List<String> calleesFirst() {
+		Map<String, List<String>> edges = new HashMap<>();
+		for (var f : this.funcs.values()) {
+			Deque<String> calls = new ArrayDeque<>();
+			for (Stmt s : f.body)
+				DeadCodeEliminator.collectCalls(s, calls);
+			List<String> known = new ArrayList<>();
+			for (String c : calls) {
+				if (this.funcs.containsKey(c))
+					known.add(c);
+			}
+			edges.put(f.name, known);
+		}
+
+		// Iterative Tarjan: strongly connected components come out callees first
+		List<String> order = new ArrayList<>();
+		this.recursive = new HashSet<>();
+		Map<String, Integer> index = new HashMap<>();
+		Map<String, Integer> low = new HashMap<>();
+		Deque<String> stack = new ArrayDeque<>();
+		Set<String> onStack = new HashSet<>();
+		Deque<Object[]> work = new ArrayDeque<>();
+		int counter = 0;
+		for (String start : this.funcs.keySet()) {
+			if (index.containsKey(start))
+				continue;
+			work.push(new Object[] { start, 0 });
+			while (!work.isEmpty()) {
+				Object[] top = work.peek();
+				String v = (String) top[0];
+				int next = (Integer) top[1];
+				if (next == 0) {
+					index.put(v, counter);
+					low.put(v, counter);
+					counter++;
+					stack.push(v);
+					onStack.add(v);
+				}
+				List<String> succ = edges.get(v);
+				if (next < succ.size()) {
+					top[1] = next + 1;
+					String w = succ.get(next);
+					if (!index.containsKey(w)) {
+						work.push(new Object[] { w, 0 });
+					} else if (onStack.contains(w)) {
+						low.put(v, Math.min(low.get(v), index.get(w)));
+					}
+					continue;
+				}
+				work.pop();
+				if (!work.isEmpty()) {
+					String parent = (String) work.peek()[0];
+					low.put(parent, Math.min(low.get(parent), low.get(v)));
+				}
+				if (low.get(v).equals(index.get(v))) {
+					List<String> component = new ArrayList<>();
+					String w;
+					do {
+						w = stack.pop();
+						onStack.remove(w);
+						component.add(w);
+					} while (!w.equals(v));
+					if (component.size() > 1 || edges.get(v).contains(v))
+						this.recursive.addAll(component);
+					order.addAll(component);
+				}
+			}
+		}
+		return order;
+	}
+
+	// ---------- Analysis ----------
+
+	static int size(Stmt s) {
+		if (s instanceof Stmt.Block b) {
+			int n = 1;
+			for (Stmt c : b.statements)
+				n += size(c);
+			return n;
+		} else if (s instanceof Stmt.Expression e) {
+			return size(e.expression);
+		} else if (s instanceof Stmt.Function f) {
+			int n = 1;
+			for (Stmt c : f.body)
+				n += size(c);
+			return n;
+		} else if (s instanceof Stmt.If i) {
+			return 1 + size(i.condition) + size(i.thenBranch) + (i.elseBranch == null ? 0 : size(i.elseBranch));
+		} else if (s instanceof Stmt.Print p) {
+			return 1 + size(p.expression);
+		} else if (s instanceof Stmt.Return r) {
+			return 1 + (r.value == null ? 0 : size(r.value));
+		} else if (s instanceof Stmt.Var v) {
+			return 1 + (v.initializer == null ? 0 : size(v.initializer));
+		} else if (s instanceof Stmt.Assign a) {
+			return 1 + size(a.value);
+		} else if (s instanceof Stmt.While w) {
+			return 1 + size(w.condition) + size(w.body);
+		}
+		return 1;
+	}
+
+	static int size(Expr e) {
+		if (e instanceof Expr.Binary b)
+			return 1 + size(b.left) + size(b.right);
+		if (e instanceof Expr.Unary u)
+			return 1 + size(u.right);
+		if (e instanceof Expr.Call c) {
+			int n = 2;
+			for (Expr a : c.arguments)
+				n += size(a);
+			return n;
+		}
+		return 1;
+	}
+
+	static boolean containsReturn(Stmt s) {
+		if (s instanceof Stmt.Return)
+			return true;
+		if (s instanceof Stmt.Block b) {
+			for (Stmt c : b.statements) {
+				if (containsReturn(c))
+					return true;
+			}
+		} else if (s instanceof Stmt.If i) {
+			return containsReturn(i.thenBranch) || i.elseBranch != null && containsReturn(i.elseBranch);
+		} else if (s instanceof Stmt.While w) {
+			return containsReturn(w.body);
+		}
+		return false;
+	}
+
+	private static boolean returnInLoop(Stmt s) {
+		if (s instanceof Stmt.While w)
+			return containsReturn(w.body);
+		if (s instanceof Stmt.Block b) {
+			for (Stmt c : b.statements) {
+				if (returnInLoop(c))
+					return true;
+			}
+		} else if (s instanceof Stmt.If i) {
+			return returnInLoop(i.thenBranch) || i.elseBranch != null && returnInLoop(i.elseBranch);
+		}
+		return false;
+	}
+
+	private Info info(Stmt.Function f) {
+		int n = 0;
+		boolean loopReturn = false;
+		for (Stmt s : f.body) {
+			n += size(s);
+			loopReturn |= returnInLoop(s);
+		}
+		// Copying the body once tells us which names aren't declared inside it
+		Set<String> free = new HashSet<>();
+		Deque<Map<String, String>> env = new ArrayDeque<>();
+		Map<String, String> params = new HashMap<>();
+		for (var p : f.params)
+			params.put(p.name(), p.name());
+		env.push(params);
+		for (Stmt s : f.body)
+			this.copy(s, env, free, "");
+		return new Info(f, n, free, loopReturn);
+	}
+
+	// ---------- Scopes at the call site ----------
+
+	private void enterScope() {
+		this.scopes.add(new HashSet<>());
+	}
+
+	private void exitScope() {
+		this.scopes.remove(this.scopes.size() - 1);
+	}
+
+	private void declare(String name) {
+		if (!this.scopes.isEmpty())
+			this.scopes.get(this.scopes.size() - 1).add(name);
+	}
+
+	// A global the callee uses must be declared already and not shadowed here
+	private boolean visibleAsGlobal(String name) {
+		for (Set<String> s : this.scopes) {
+			if (s.contains(name))
+				return false;
+		}
+		Integer decl = this.globalDecl.get(name);
+		return decl != null && decl < this.position;
+	}
+
+	// ---------- Inlining decisions ----------
+
+	private Info candidate(Expr.Call call, int budget) {
+		Info info = this.infos.get(call.name);
+		if (info == null || this.recursive.contains(call.name) || info.size > budget
+				|| info.size > this.growthLeft)
+			return null;
+		for (String g : info.free) {
+			if (!this.visibleAsGlobal(g))
+				return null;
+		}
+		return info;
+	}
+
+	private int budget(String callee) {
+		if (this.callSites.getOrDefault(callee, 0) == 1)
+			return SINGLE_SITE_BUDGET;
+		if (this.loopDepth >= 2)
+			return NESTED_LOOP_BUDGET;
+		if (this.loopDepth == 1)
+			return LOOP_BUDGET;
+		return BASE_BUDGET;
+	}
+
+	private String freshName(String fun, String name) {
+		return "__" + fun + this.fresh++ + "_" + name;
+	}
+
+	private Stmt expand(Info info, List<Expr> args, Sink sink, boolean sinkReturns, int line) {
+		Stmt.Function f = info.fun;
+		this.growthLeft -= info.size;
+
+		List<Stmt> block = new ArrayList<>();
+		Map<String, String> params = new HashMap<>();
+		for (int i = 0; i < f.params.size(); i++) {
+			var p = f.params.get(i);
+			String name = this.freshName(f.name, p.name());
+			params.put(p.name(), name);
+			block.add(new Stmt.Var(name, p.type(), args.get(i), line));
+		}
+
+		Deque<Map<String, String>> env = new ArrayDeque<>();
+		env.push(params);
+		String prefix = "__" + f.name + this.fresh++ + "_";
+		List<Stmt> body = new ArrayList<>();
+		for (Stmt s : f.body)
+			body.add(this.copy(s, env, new HashSet<>(), prefix));
+
+		if (sinkReturns) {
+			// return f(x) in the caller: the callee's returns can stay as they are
+			block.addAll(body);
+		} else {
+			String[] flag = new String[1];
+			List<Stmt> lowered = this.lowerReturns(body, sink, flag, prefix);
+			if (flag[0] != null)
+				block.add(new Stmt.Var(flag[0], VarType.BOOL, new Expr.Literal(false, line), line));
+			block.addAll(lowered);
+		}
+		return new Stmt.Block(block, line);
+	}
+
+	/**
+	 * Replaces the returns in an inlined body with the sink's statements. An if
+	 * without an else whose branch always returns gets the rest of the body as
+	 * its else; otherwise a done flag guards the statements after a nested return.
+	 */
+	private List<Stmt> lowerReturns(List<Stmt> body, Sink sink, String[] flag, String prefix) {
+		List<Stmt> out = new ArrayList<>();
+		for (int i = 0; i < body.size(); i++) {
+			Stmt s = body.get(i);
+			List<Stmt> rest = body.subList(i + 1, body.size());
+			if (!containsReturn(s)) {
+				out.add(s);
+				continue;
+			}
+			if (s instanceof Stmt.Return r) {
+				out.addAll(sink.accept(r.value, r.line));
+				if (flag[0] != null)
+					out.add(new Stmt.Assign(flag[0], new Expr.Literal(true, r.line), r.line));
+				return out;
+			}
+			if (s instanceof Stmt.If f && f.elseBranch == null && DeadCodeEliminator.neverCompletes(f.thenBranch)) {
+				out.add(new Stmt.If(f.condition, this.lowerBranch(f.thenBranch, sink, flag, prefix),
+						new Stmt.Block(this.lowerReturns(rest, sink, flag, prefix), f.line), f.line));
+				return out;
+			}
+
+			if (flag[0] == null)
+				flag[0] = prefix + "done";
+			if (s instanceof Stmt.If f) {
+				Stmt elseBranch = f.elseBranch == null ? null : this.lowerBranch(f.elseBranch, sink, flag, prefix);
+				out.add(new Stmt.If(f.condition, this.lowerBranch(f.thenBranch, sink, flag, prefix), elseBranch,
+						f.line));
+			} else {
+				out.add(this.lowerBranch(s, sink, flag, prefix));
+			}
+			if (DeadCodeEliminator.neverCompletes(s) || rest.isEmpty())
+				return out;
+			Expr notDone = new Expr.Unary(Operator.NOT, new Expr.Variable(flag[0], s.line), s.line);
+			out.add(new Stmt.If(notDone, new Stmt.Block(this.lowerReturns(rest, sink, flag, prefix), s.line),
+					null, s.line));
+			return out;
+		}
+		return out;
+	}
+
+	private Stmt lowerBranch(Stmt s, Sink sink, String[] flag, String prefix) {
+		List<Stmt> stmts = s instanceof Stmt.Block b ? b.statements : List.of(s);
+		return new Stmt.Block(this.lowerReturns(stmts, sink, flag, prefix), s.line);
+	}
+
+	// Tries to inline a call that is a whole statement; returns null if it shouldn't be
+	private Stmt inlineStatement(Expr.Call call, Sink sink, boolean sinkReturns, int line) {
+		Info info = this.candidate(call, this.budget(call.name));
+		if (info == null || info.returnInLoop && !sinkReturns)
+			return null;
+		return this.expand(info, call.arguments, sink, sinkReturns, line);
+	}
+
+	// ---------- Renaming copy ----------
+
+	private String resolve(String name, Deque<Map<String, String>> env, Set<String> free) {
+		for (Map<String, String> scope : env) {
+			if (scope.containsKey(name))
+				return scope.get(name);
+		}
+		free.add(name);
+		return name;
+	}
+
+	// Copies a callee statement, giving every declaration inside it a fresh name
+	private Stmt copy(Stmt s, Deque<Map<String, String>> env, Set<String> free, String prefix) {
+		if (s instanceof Stmt.Block b) {
+			env.push(new HashMap<>());
+			List<Stmt> body = new ArrayList<>();
+			for (Stmt c : b.statements)
+				body.add(this.copy(c, env, free, prefix));
+			env.pop();
+			return new Stmt.Block(body, b.line);
+		} else if (s instanceof Stmt.Expression e) {
+			return new Stmt.Expression(this.copy(e.expression, env, free), e.line);
+		} else if (s instanceof Stmt.If i) {
+			Stmt thenBranch = this.copyScoped(i.thenBranch, env, free, prefix);
+			Stmt elseBranch = i.elseBranch == null ? null : this.copyScoped(i.elseBranch, env, free, prefix);
+			return new Stmt.If(this.copy(i.condition, env, free), thenBranch, elseBranch, i.line);
+		} else if (s instanceof Stmt.Print p) {
+			return new Stmt.Print(this.copy(p.expression, env, free), p.line);
+		} else if (s instanceof Stmt.Return r) {
+			return new Stmt.Return(r.value == null ? null : this.copy(r.value, env, free), r.line);
+		} else if (s instanceof Stmt.Var v) {
+			Expr init = v.initializer == null ? null : this.copy(v.initializer, env, free);
+			String name = prefix.isEmpty() ? v.name : prefix + this.fresh++ + "_" + v.name;
+			env.peek().put(v.name, name);
+			return new Stmt.Var(name, v.type, init, v.line);
+		} else if (s instanceof Stmt.Assign a) {
+			return new Stmt.Assign(this.resolve(a.name, env, free), this.copy(a.value, env, free), a.line);
+		} else if (s instanceof Stmt.While w) {
+			return new Stmt.While(this.copy(w.condition, env, free), this.copyScoped(w.body, env, free, prefix),
+					w.line);
+		}
+		throw new Error("Can't inline statement " + s.getClass().getSimpleName());
+	}
+
+	private Stmt copyScoped(Stmt s, Deque<Map<String, String>> env, Set<String> free, String prefix) {
+		env.push(new HashMap<>());
+		Stmt ret = this.copy(s, env, free, prefix);
+		env.pop();
+		return ret;
+	}
+
+	private Expr copy(Expr e, Deque<Map<String, String>> env, Set<String> free) {
+		if (e instanceof Expr.Binary b)
+			return new Expr.Binary(this.copy(b.left, env, free), b.operator, this.copy(b.right, env, free), b.line);
+		if (e instanceof Expr.Unary u)
+			return new Expr.Unary(u.operator, this.copy(u.right, env, free), u.line);
+		if (e instanceof Expr.Variable v)
+			return new Expr.Variable(this.resolve(v.name, env, free), v.line);
+		if (e instanceof Expr.Call c) {
+			List<Expr> args = new ArrayList<>();
+			for (Expr a : c.arguments)
+				args.add(this.copy(a, env, free));
+			return new Expr.Call(c.name, args, c.line);
+		}
+		return e;
+	}
+
+	// Substitutes arguments for parameters in the expression of a single-return function
+	private static Expr substitute(Expr e, Map<String, Expr> args) {
+		if (e instanceof Expr.Binary b)
+			return new Expr.Binary(substitute(b.left, args), b.operator, substitute(b.right, args), b.line);
+		if (e instanceof Expr.Unary u)
+			return new Expr.Unary(u.operator, substitute(u.right, args), u.line);
+		if (e instanceof Expr.Variable v && args.containsKey(v.name))
+			return args.get(v.name);
+		if (e instanceof Expr.Call c) {
+			List<Expr> as = new ArrayList<>();
+			for (Expr a : c.arguments)
+				as.add(substitute(a, args));
+			return new Expr.Call(c.name, as, c.line);
+		}
+		return e;
+	}
+
+	private static int uses(Expr e, String name) {
+		if (e instanceof Expr.Binary b)
+			return uses(b.left, name) + uses(b.right, name);
+		if (e instanceof Expr.Unary u)
+			return uses(u.right, name);
+		if (e instanceof Expr.Variable v)
+			return v.name.equals(name) ? 1 : 0;
+		if (e instanceof Expr.Call c) {
+			int n = 0;
+			for (Expr a : c.arguments)
+				n += uses(a, name);
+			return n;
+		}
+		return 0;
+	}
+
+	private static boolean mentions(Expr.Call call, String name) {
+		for (Expr a : call.arguments) {
+			if (uses(a, name) > 0)
+				return true;
+		}
+		return false;
+	}
+
+	// ---------- Statements ----------
+
+	private List<Stmt> statements(List<Stmt> stmts) {
+		List<Stmt> out = new ArrayList<>();
+		for (Stmt s : stmts) {
+			if (s instanceof Stmt.Var v && v.initializer instanceof Expr.Call c) {
+				Expr init = this.visitCallExpr(c);
+				if (init instanceof Expr.Call call && mentions(call, v.name)) {
+					// int x = f(x); reads an outer x, so the inlined block runs before x is declared
+					String tmp = this.freshName(call.name, "result");
+					Stmt inlined = this.inlineStatement(call,
+							(value, line) -> List.of(new Stmt.Assign(tmp, value, line)), false, v.line);
+					if (inlined != null) {
+						out.add(new Stmt.Var(tmp, v.type, null, v.line));
+						out.add(inlined);
+						init = new Expr.Variable(tmp, v.line);
+					}
+					this.declare(v.name);
+					out.add(new Stmt.Var(v.name, v.type, init, v.line));
+					continue;
+				}
+				// int r = f(x); becomes int r; followed by the inlined block assigning r
+				this.declare(v.name);
+				Stmt inlined = init instanceof Expr.Call call ? this.inlineStatement(call,
+						(value, line) -> List.of(new Stmt.Assign(v.name, value, line)), false, v.line) : null;
+				if (inlined != null) {
+					out.add(new Stmt.Var(v.name, v.type, null, v.line));
+					out.add(inlined);
+				} else {
+					out.add(new Stmt.Var(v.name, v.type, init, v.line));
+				}
+				continue;
+			}
+			out.add(s.accept(this));
+		}
+		return out;
+	}
+
+	private Stmt scoped(Stmt s) {
+		if (s == null)
+			return null;
+		this.enterScope();
+		Stmt ret = s.accept(this);
+		this.exitScope();
+		return ret;
+	}
+
+	@Override
+	public Stmt visitBlockStmt(Stmt.Block stmt) {
+		this.enterScope();
+		List<Stmt> body = this.statements(stmt.statements);
+		this.exitScope();
+		return new Stmt.Block(body, stmt.line);
+	}
+
+	@Override
+	public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+		Expr e = stmt.expression.accept(this);
+		if (e instanceof Expr.Call c) {
+			Stmt inlined = this.inlineStatement(c, (value, line) -> ConstantFolder.isPure(value) ? List.of()
+					: List.of(new Stmt.Expression(value, line)), false, stmt.line);
+			if (inlined != null)
+				return inlined;
+		}
+		return new Stmt.Expression(e, stmt.line);
+	}
+
+	@Override
+	public Stmt visitFunctionStmt(Stmt.Function stmt) {
+		throw new Error("Functions cannot be nested.");
+	}
+
+	@Override
+	public Stmt visitIfStmt(Stmt.If stmt) {
+		return new Stmt.If(stmt.condition.accept(this), this.scoped(stmt.thenBranch), this.scoped(stmt.elseBranch),
+				stmt.line);
+	}
+
+	@Override
+	public Stmt visitPrintStmt(Stmt.Print stmt) {
+		Expr e = stmt.expression.accept(this);
+		if (e instanceof Expr.Call c && this.infos.containsKey(c.name)) {
+			String tmp = this.freshName(c.name, "result");
+			Stmt inlined = this.inlineStatement(c, (value, line) -> List.of(new Stmt.Assign(tmp, value, line)),
+					false, stmt.line);
+			if (inlined != null) {
+				VarType t = this.infos.get(c.name).fun.returnType;
+				return new Stmt.Block(List.of(new Stmt.Var(tmp, t, null, stmt.line), inlined,
+						new Stmt.Print(new Expr.Variable(tmp, stmt.line), stmt.line)), stmt.line);
+			}
+		}
+		return new Stmt.Print(e, stmt.line);
+	}
+
+	@Override
+	public Stmt visitReturnStmt(Stmt.Return stmt) {
+		if (stmt.value == null)
+			return stmt;
+		Expr e = stmt.value.accept(this);
+		if (e instanceof Expr.Call c) {
+			Stmt inlined = this.inlineStatement(c, null, true, stmt.line);
+			if (inlined != null)
+				return inlined;
+		}
+		return new Stmt.Return(e, stmt.line);
+	}
+
+	@Override
+	public Stmt visitVarStmt(Stmt.Var stmt) {
+		Expr init = stmt.initializer == null ? null : stmt.initializer.accept(this);
+		this.declare(stmt.name);
+		return new Stmt.Var(stmt.name, stmt.type, init, stmt.line);
+	}
+
+	@Override
+	public Stmt visitAssignStmt(Stmt.Assign stmt) {
+		Expr e = stmt.value.accept(this);
+		if (e instanceof Expr.Call c) {
+			Stmt inlined = this.inlineStatement(c,
+					(value, line) -> List.of(new Stmt.Assign(stmt.name, value, line)), false, stmt.line);
+			if (inlined != null)
+				return inlined;
+		}
+		return new Stmt.Assign(stmt.name, e, stmt.line);
+	}
+
+	@Override
+	public Stmt visitWhileStmt(Stmt.While stmt) {
+		this.loopDepth++;
+		Stmt ret = new Stmt.While(stmt.condition.accept(this), this.scoped(stmt.body), stmt.line);
+		this.loopDepth--;
+		return ret;
+	}
+
+	// ---------- Expressions ----------
+
+	@Override
+	public Expr visitBinaryExpr(Expr.Binary expr) {
+		return new Expr.Binary(expr.left.accept(this), expr.operator, expr.right.accept(this), expr.line);
+	}
+
+	@Override
+	public Expr visitLiteralExpr(Expr.Literal expr) {
+		return expr;
+	}
+
+	@Override
+	public Expr visitUnaryExpr(Expr.Unary expr) {
+		return new Expr.Unary(expr.operator, expr.right.accept(this), expr.line);
+	}
+
+	@Override
+	public Expr visitVariableExpr(Expr.Variable expr) {
+		return expr;
+	}
+
+	@Override
+	public Expr visitCallExpr(Expr.Call expr) {
+		List<Expr> args = new ArrayList<>();
+		for (Expr a : expr.arguments)
+			args.add(a.accept(this));
+		Expr.Call call = new Expr.Call(expr.name, args, expr.line);
+
+		// Only single-return functions can be substituted into an expression
+		Info info = this.candidate(call, this.budget(call.name));
+		if (info == null || info.fun.body.size() != 1 || !(info.fun.body.get(0) instanceof Stmt.Return r))
+			return call;
+
+		boolean pureBody = ConstantFolder.isPure(r.value);
+		Map<String, Expr> subst = new HashMap<>();
+		for (int i = 0; i < args.size(); i++) {
+			Expr a = args.get(i);
+			int n = uses(r.value, info.fun.params.get(i).name());
+			boolean trivial = a instanceof Expr.Literal || a instanceof Expr.Variable && pureBody;
+			// Anything else must be evaluated exactly once, and can't move past a call in the body
+			if (!trivial && !(n == 1 && pureBody && ConstantFolder.isPure(a)))
+				return call;
+			if (n == 0 && !ConstantFolder.isPure(a))
+				return call;
+			subst.put(info.fun.params.get(i).name(), a);
+		}
+		this.growthLeft -= info.size;
+		return substitute(r.value, subst);
+	}
+}
@@ -12,9 +12,23 @@ class ReturnValue {
 
 class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<ReturnValue> {
 	Environment env;
+	// Null unless profiling was requested
+	private final Profiler profiler;
 
 	Interpreter() {
+		this(null);
+	}
+
+	Interpreter(Profiler profiler) {
 		this.env = new Environment();
+		this.profiler = profiler;
+	}
+
+	private ReturnValue execute(Stmt s) {
+		// Blocks are only containers, and their line points past the closing brace
+		if (this.profiler != null && !(s instanceof Stmt.Block))
+			this.profiler.line(s.line);
+		return s.accept(this);
 	}
 
 	private void assertType(VarType type, int line, Object... values) {
@@ -66,9 +80,9 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<ReturnValue> {
 		var condition = evalExpression(stmt.condition, VarType.BOOL);
 
 		if ((boolean) condition) {
-			return stmt.thenBranch.accept(this);
+			return execute(stmt.thenBranch);
 		} else if (stmt.elseBranch != null) {
-			return stmt.elseBranch.accept(this);
+			return execute(stmt.elseBranch);
 		} else {
 			return null;
 		}
@@ -96,7 +110,7 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<ReturnValue> {
 		this.env = new Environment(old);
 		ReturnValue ret = null;
 		for (var s : stmt.statements) {
-			ret = s.accept(this);
+			ret = execute(s);
 			if (ret != null)
 				break;
 		}
@@ -118,7 +132,7 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<ReturnValue> {
 	@Override
 	public ReturnValue visitWhileStmt(Stmt.While stmt) {
 		while ((boolean) evalExpression(stmt.condition, VarType.BOOL)) {
-			var ret = stmt.body.accept(this);
+			var ret = execute(stmt.body);
 			if (ret != null) {
 				return ret;
 			}
@@ -238,13 +252,18 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<ReturnValue> {
 		var old = this.env;
 		this.env = env;
 
+		if (this.profiler != null)
+			this.profiler.enter(function);
+
 		ReturnValue ret = null;
 		for (Stmt s : function.body) {
-			ret = s.accept(this);
+			ret = execute(s);
 			if (ret != null)
 				break;
 		}
 
+		if (this.profiler != null)
+			this.profiler.exit();
 		this.env = old;
 
 		// Return
@@ -269,12 +288,19 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<ReturnValue> {
 			}
 		}
 		// Visit everything
-		for (var s : stmts) {
-			var ret = s.accept(this);
-			if (ret != null)
-				return ret;
+		if (this.profiler != null)
+			this.profiler.start();
+		try {
+			for (var s : stmts) {
+				var ret = execute(s);
+				if (ret != null)
+					return ret;
+			}
+			return null;
+		} finally {
+			if (this.profiler != null)
+				this.profiler.stop();
 		}
-		return null;
 	}
 
 	public void clear_env() {
@@ -0,0 +1,455 @@
+package edu.wisc;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import edu.wisc.ir.BasicBlock;
+import edu.wisc.ir.Cfg;
+import edu.wisc.ir.Const;
+import edu.wisc.ir.Instr;
+import edu.wisc.ir.IrFunction;
+import edu.wisc.ir.IrProgram;
+import edu.wisc.ir.Op;
+import edu.wisc.ir.Operand;
+import edu.wisc.ir.Phi;
+import edu.wisc.ir.VReg;
+
+/**
+ * Lowers the checked AST to SSA form IR, using the construction of Braun et
+ * al. ("Simple and Efficient Construction of Static Single Assignment Form").
+ * Parameters and block scoped variables become virtual registers, with phi
+ * nodes placed on demand as they are read. Variables declared at the top level
+ * are globals that any function can change, so they stay in memory and are
+ * accessed with loads and stores.
+ */
+class IrBuilder implements Stmt.Visitor<Void> {
+	private final Map<String, Stmt.Function> funcs = new HashMap<>();
+	private final Map<String, VarType> globalTypes = new HashMap<>();
+	private IrProgram program;
+
+	// ---------- Per-function state ----------
+	private IrFunction fn;
+	private BasicBlock cur;
+	// Innermost scope first; each maps a name to the declaration that introduced it
+	private final Deque<Map<String, Object>> scopes = new ArrayDeque<>();
+	private final Map<Object, VarType> localTypes = new IdentityHashMap<>();
+	private final Map<Object, Map<BasicBlock, Operand>> currentDef = new IdentityHashMap<>();
+	private final Set<BasicBlock> sealed = new HashSet<>();
+	private final Map<BasicBlock, Map<Object, Phi>> incompletePhis = new HashMap<>();
+
+	public IrProgram build(List<Stmt> program) {
+		this.program = new IrProgram();
+		this.funcs.clear();
+		this.globalTypes.clear();
+		for (Stmt s : program) {
+			if (s instanceof Stmt.Function f) {
+				this.funcs.put(f.name, f);
+			} else if (s instanceof Stmt.Var v && !this.globalTypes.containsKey(v.name)) {
+				this.globalTypes.put(v.name, v.type);
+				this.program.globals.add(v.name);
+			}
+		}
+
+		// The top level code, with functions skipped by visitFunctionStmt
+		this.begin(new IrFunction("main", "main", false));
+		for (Stmt s : program)
+			s.accept(this);
+		this.finish(null);
+
+		for (Stmt s : program) {
+			if (s instanceof Stmt.Function f) {
+				this.begin(new IrFunction(f.name, "_" + f.name, true));
+				Map<String, Object> params = new HashMap<>();
+				for (Stmt.Parameter p : f.params) {
+					VReg r = this.fn.newReg();
+					this.fn.params.add(r);
+					params.put(p.name(), p);
+					this.localTypes.put(p, p.type());
+					this.writeVariable(p, this.cur, r);
+				}
+				this.scopes.push(params);
+				for (Stmt b : f.body)
+					b.accept(this);
+				this.finish(Const.ZERO);
+			}
+		}
+		return this.program;
+	}
+
+	private void begin(IrFunction f) {
+		this.fn = f;
+		this.scopes.clear();
+		this.localTypes.clear();
+		this.currentDef.clear();
+		this.sealed.clear();
+		this.incompletePhis.clear();
+		this.cur = f.newBlock();
+		this.sealed.add(this.cur);
+	}
+
+	// Falling off the end of a function returns fallback
+	private void finish(Operand fallback) {
+		if (!this.cur.isTerminated())
+			this.cur.instrs.add(new Instr.Return(fallback));
+		Cfg.removeUnreachable(this.fn);
+		this.removeTrivialPhis();
+		Cfg.removeDeadCode(this.fn);
+		this.program.functions.add(this.fn);
+	}
+
+	// ---------- Control flow helpers ----------
+
+	private BasicBlock newBlock() {
+		return this.fn.newBlock();
+	}
+
+	private void jump(BasicBlock target) {
+		this.cur.instrs.add(new Instr.Jump(target));
+		IrFunction.addEdge(this.cur, target);
+	}
+
+	private void branch(Operand cond, BasicBlock ifTrue, BasicBlock ifFalse) {
+		this.cur.instrs.add(new Instr.Branch(cond, ifTrue, ifFalse));
+		IrFunction.addEdge(this.cur, ifTrue);
+		IrFunction.addEdge(this.cur, ifFalse);
+	}
+
+	// Jumps to target unless the current block already ended in a return
+	private void fallThrough(BasicBlock target) {
+		if (!this.cur.isTerminated())
+			this.jump(target);
+	}
+
+	// ---------- SSA construction ----------
+
+	private void writeVariable(Object var, BasicBlock block, Operand value) {
+		this.currentDef.computeIfAbsent(var, k -> new HashMap<>()).put(block, value);
+	}
+
+	private Operand readVariable(Object var, BasicBlock block) {
+		Map<BasicBlock, Operand> defs = this.currentDef.get(var);
+		if (defs != null && defs.containsKey(block))
+			return defs.get(block);
+		return this.readVariableRecursive(var, block);
+	}
+
+	private Operand readVariableRecursive(Object var, BasicBlock block) {
+		Operand value;
+		if (!this.sealed.contains(block)) {
+			// Not all predecessors are known yet, so fill the phi in when sealing
+			Phi phi = new Phi(this.fn.newReg());
+			block.phis.add(phi);
+			this.incompletePhis.computeIfAbsent(block, k -> new HashMap<>()).put(var, phi);
+			value = phi.dst;
+		} else if (block.preds.isEmpty()) {
+			// Unreachable code, or a variable read before it's set
+			value = Const.ZERO;
+		} else if (block.preds.size() == 1) {
+			value = this.readVariable(var, block.preds.get(0));
+		} else {
+			Phi phi = new Phi(this.fn.newReg());
+			block.phis.add(phi);
+			// Written before the operands are read, to stop cycles through loops
+			this.writeVariable(var, block, phi.dst);
+			this.addPhiOperands(var, phi, block);
+			value = phi.dst;
+		}
+		this.writeVariable(var, block, value);
+		return value;
+	}
+
+	private void addPhiOperands(Object var, Phi phi, BasicBlock block) {
+		for (BasicBlock pred : block.preds)
+			phi.operands.add(this.readVariable(var, pred));
+	}
+
+	private void seal(BasicBlock block) {
+		Map<Object, Phi> pending = this.incompletePhis.remove(block);
+		this.sealed.add(block);
+		if (pending != null) {
+			for (Map.Entry<Object, Phi> e : pending.entrySet())
+				this.addPhiOperands(e.getKey(), e.getValue(), block);
+		}
+	}
+
+	// A new block whose predecessors are all already known
+	private BasicBlock sealedBlock() {
+		BasicBlock b = this.newBlock();
+		this.sealed.add(b);
+		return b;
+	}
+
+	/*
+	 * A phi is trivial when all its operands are the same value or the phi
+	 * itself. Such phis are replaced by that value until none are left, which
+	 * can make other phis trivial in turn.
+	 */
+	private void removeTrivialPhis() {
+		Map<VReg, Operand> replace = new HashMap<>();
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (BasicBlock b : this.fn.blocks) {
+				for (int i = b.phis.size() - 1; i >= 0; i--) {
+					Phi phi = b.phis.get(i);
+					Operand same = null;
+					boolean trivial = true;
+					for (Operand o : phi.operands) {
+						o = resolve(replace, o);
+						if (o.equals(phi.dst) || o.equals(same))
+							continue;
+						if (same != null) {
+							trivial = false;
+							break;
+						}
+						same = o;
+					}
+					if (trivial) {
+						replace.put(phi.dst, same == null ? Const.ZERO : same);
+						b.phis.remove(i);
+						changed = true;
+					}
+				}
+			}
+		}
+		for (BasicBlock b : this.fn.blocks) {
+			for (Phi phi : b.phis)
+				phi.operands.replaceAll(o -> resolve(replace, o));
+			b.instrs.replaceAll(in -> in.mapUses(o -> resolve(replace, o)));
+		}
+	}
+
+	private static Operand resolve(Map<VReg, Operand> replace, Operand o) {
+		while (o instanceof VReg v && replace.containsKey(v))
+			o = replace.get(v);
+		return o;
+	}
+
+	// ---------- Variables ----------
+
+	// The declaration name refers to here, or null for a global
+	private Object lookup(String name) {
+		for (Map<String, Object> scope : this.scopes) {
+			if (scope.containsKey(name))
+				return scope.get(name);
+		}
+		return null;
+	}
+
+	private VarType typeOf(String name) {
+		Object decl = this.lookup(name);
+		return decl != null ? this.localTypes.get(decl) : this.globalTypes.get(name);
+	}
+
+	private void assign(String name, Operand value) {
+		Object decl = this.lookup(name);
+		if (decl != null)
+			this.writeVariable(decl, this.cur, value);
+		else
+			this.cur.instrs.add(new Instr.Store(name, value));
+	}
+
+	// ---------- Statements ----------
+
+	@Override
+	public Void visitBlockStmt(Stmt.Block stmt) {
+		this.scopes.push(new HashMap<>());
+		for (Stmt s : stmt.statements)
+			s.accept(this);
+		this.scopes.pop();
+		return null;
+	}
+
+	@Override
+	public Void visitExpressionStmt(Stmt.Expression stmt) {
+		this.lower(stmt.expression);
+		return null;
+	}
+
+	@Override
+	public Void visitFunctionStmt(Stmt.Function stmt) {
+		// Lowered separately into a function of its own
+		return null;
+	}
+
+	@Override
+	public Void visitIfStmt(Stmt.If stmt) {
+		Operand cond = this.lower(stmt.condition);
+		BasicBlock thenBlock = this.sealedBlock();
+		BasicBlock join = this.newBlock();
+		BasicBlock elseBlock = stmt.elseBranch != null ? this.sealedBlock() : join;
+		this.branch(cond, thenBlock, elseBlock);
+
+		this.cur = thenBlock;
+		stmt.thenBranch.accept(this);
+		this.fallThrough(join);
+
+		if (stmt.elseBranch != null) {
+			this.cur = elseBlock;
+			stmt.elseBranch.accept(this);
+			this.fallThrough(join);
+		}
+
+		this.seal(join);
+		this.cur = join;
+		return null;
+	}
+
+	@Override
+	public Void visitPrintStmt(Stmt.Print stmt) {
+		Operand value = this.lower(stmt.expression);
+		this.cur.instrs.add(new Instr.Print(value, this.type(stmt.expression) == VarType.BOOL));
+		return null;
+	}
+
+	@Override
+	public Void visitReturnStmt(Stmt.Return stmt) {
+		Operand value = stmt.value != null ? this.lower(stmt.value) : null;
+		if (value == null && this.fn.returnsValue)
+			value = Const.ZERO;
+		this.cur.instrs.add(new Instr.Return(value));
+		// Anything after the return is unreachable and gets dropped at the end
+		this.cur = this.sealedBlock();
+		return null;
+	}
+
+	@Override
+	public Void visitVarStmt(Stmt.Var stmt) {
+		Operand value = stmt.initializer != null ? this.lower(stmt.initializer) : Const.ZERO;
+		if (this.scopes.isEmpty()) {
+			// Top level variable of the main program
+			if (stmt.initializer != null)
+				this.cur.instrs.add(new Instr.Store(stmt.name, value));
+		} else {
+			this.scopes.peek().put(stmt.name, stmt);
+			this.localTypes.put(stmt, stmt.type);
+			this.writeVariable(stmt, this.cur, value);
+		}
+		return null;
+	}
+
+	@Override
+	public Void visitAssignStmt(Stmt.Assign stmt) {
+		this.assign(stmt.name, this.lower(stmt.value));
+		return null;
+	}
+
+	@Override
+	public Void visitWhileStmt(Stmt.While stmt) {
+		// The header isn't sealed until the back edge from the body exists
+		BasicBlock header = this.newBlock();
+		this.jump(header);
+		this.cur = header;
+		Operand cond = this.lower(stmt.condition);
+		BasicBlock body = this.sealedBlock();
+		BasicBlock exit = this.sealedBlock();
+		this.branch(cond, body, exit);
+
+		this.cur = body;
+		stmt.body.accept(this);
+		this.fallThrough(header);
+		this.seal(header);
+
+		this.cur = exit;
+		return null;
+	}
+
+	// ---------- Expressions ----------
+
+	private Operand lower(Expr e) {
+		if (e instanceof Expr.Literal l) {
+			if (l.value instanceof Boolean b)
+				return b ? Const.ONE : Const.ZERO;
+			return new Const((Integer) l.value);
+		} else if (e instanceof Expr.Variable v) {
+			Object decl = this.lookup(v.name);
+			if (decl != null)
+				return this.readVariable(decl, this.cur);
+			VReg r = this.fn.newReg();
+			this.cur.instrs.add(new Instr.Load(r, v.name));
+			return r;
+		} else if (e instanceof Expr.Unary u) {
+			Operand operand = this.lower(u.right);
+			VReg r = this.fn.newReg();
+			this.cur.instrs.add(new Instr.Unary(r, u.operator == Operator.NOT ? Op.NOT : Op.NEG, operand));
+			return r;
+		} else if (e instanceof Expr.Call c) {
+			List<Operand> args = new ArrayList<>();
+			for (Expr a : c.arguments)
+				args.add(this.lower(a));
+			VReg r = this.fn.newReg();
+			this.cur.instrs.add(new Instr.Call(r, c.name, args));
+			return r;
+		} else if (e instanceof Expr.Binary b) {
+			// && and || evaluate both sides, like the interpreter
+			Operand left = this.lower(b.left);
+			Operand right = this.lower(b.right);
+			VReg r = this.fn.newReg();
+			this.cur.instrs.add(new Instr.Binary(r, binaryOp(b.operator), left, right));
+			return r;
+		}
+		throw new Error("Unknown expression " + e);
+	}
+
+	private static Op binaryOp(Operator op) {
+		switch (op) {
+			case PLUS:
+				return Op.ADD;
+			case MINUS:
+				return Op.SUB;
+			case MULTIPLY:
+				return Op.MUL;
+			case DIVIDE:
+				return Op.DIV;
+			case EQUAL:
+				return Op.EQ;
+			case NOT_EQUAL:
+				return Op.NE;
+			case LESS:
+				return Op.LT;
+			case LESS_EQUAL:
+				return Op.LE;
+			case GREATER:
+				return Op.GT;
+			case GREATER_EQUAL:
+				return Op.GE;
+			case AND:
+				return Op.AND;
+			case OR:
+				return Op.OR;
+			default:
+				throw new Error("Invalid binary op " + op);
+		}
+	}
+
+	// Static type of an expression, used to pick how print shows it
+	private VarType type(Expr e) {
+		if (e instanceof Expr.Literal l)
+			return l.value instanceof Boolean ? VarType.BOOL : VarType.INT;
+		if (e instanceof Expr.Variable v)
+			return this.typeOf(v.name);
+		if (e instanceof Expr.Call c)
+			return this.funcs.get(c.name).returnType;
+		if (e instanceof Expr.Unary u)
+			return u.operator == Operator.NOT ? VarType.BOOL : VarType.INT;
+		if (e instanceof Expr.Binary b) {
+			switch (b.operator) {
+				case PLUS:
+				case MINUS:
+				case MULTIPLY:
+				case DIVIDE:
+					return VarType.INT;
+				default:
+					return VarType.BOOL;
+			}
+		}
+		throw new Error("Unknown expression " + e);
+	}
+}
@@ -0,0 +1,319 @@
+package edu.wisc;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Optimization pass that hoists loop-invariant expressions out of while loops.
+ * A unary or binary expression is invariant if it has no calls and reads only
+ * variables that the loop never assigns or declares, directly or through any
+ * function it calls. Each distinct invariant expression is computed once into
+ * a fresh variable declared just before the loop:
+ * <pre>
+ * while (i &lt; n * m) { ... }   =&gt;   { int __licm0 = n * m; while (i &lt; __licm0) { ... } }
+ * </pre>
+ * Outer loops are handled first, so an expression invariant in a whole loop nest
+ * ends up in front of the outermost loop. Division is only hoisted when the
+ * divisor is a non-zero constant, since the loop body might never have run it.
+ */
+class LoopInvariantMotion implements Stmt.Visitor<Stmt> {
+	// Variables each function may assign outside of its own scope, including through calls
+	private final Map<String, Set<String>> writes = new HashMap<>();
+	private int fresh;
+
+	public List<Stmt> hoist(List<Stmt> program) {
+		this.writes.clear();
+		this.fresh = 0;
+		this.computeWrites(program);
+
+		List<Stmt> out = new ArrayList<>();
+		for (Stmt s : program)
+			out.add(s.accept(this));
+		return out;
+	}
+
+	// ---------- Side effects of calls ----------
+
+	private void computeWrites(List<Stmt> program) {
+		Map<String, Set<String>> callees = new HashMap<>();
+		for (Stmt s : program) {
+			if (s instanceof Stmt.Function f) {
+				Set<String> w = new HashSet<>();
+				Deque<Set<String>> scopes = new ArrayDeque<>();
+				Set<String> params = new HashSet<>();
+				for (var p : f.params)
+					params.add(p.name());
+				scopes.push(params);
+				for (Stmt b : f.body)
+					freeWrites(b, scopes, w);
+				this.writes.put(f.name, w);
+
+				Deque<String> calls = new ArrayDeque<>();
+				DeadCodeEliminator.collectCalls(f, calls);
+				callees.put(f.name, new HashSet<>(calls));
+			}
+		}
+
+		// Propagate writes from callees to callers until nothing changes
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (var e : callees.entrySet()) {
+				Set<String> w = this.writes.get(e.getKey());
+				for (String c : e.getValue()) {
+					Set<String> cw = this.writes.get(c);
+					if (cw != null && w.addAll(cw))
+						changed = true;
+				}
+			}
+		}
+	}
+
+	// Assignments to names that aren't declared inside the function
+	static void freeWrites(Stmt s, Deque<Set<String>> scopes, Set<String> out) {
+		if (s instanceof Stmt.Assign a) {
+			for (Set<String> scope : scopes) {
+				if (scope.contains(a.name))
+					return;
+			}
+			out.add(a.name);
+		} else if (s instanceof Stmt.Var v) {
+			scopes.peek().add(v.name);
+		} else if (s instanceof Stmt.Block b) {
+			scopes.push(new HashSet<>());
+			for (Stmt c : b.statements)
+				freeWrites(c, scopes, out);
+			scopes.pop();
+		} else if (s instanceof Stmt.If i) {
+			scopes.push(new HashSet<>());
+			freeWrites(i.thenBranch, scopes, out);
+			scopes.pop();
+			if (i.elseBranch != null) {
+				scopes.push(new HashSet<>());
+				freeWrites(i.elseBranch, scopes, out);
+				scopes.pop();
+			}
+		} else if (s instanceof Stmt.While w) {
+			scopes.push(new HashSet<>());
+			freeWrites(w.body, scopes, out);
+			scopes.pop();
+		}
+	}
+
+	// Everything a loop may change: assigned or declared names, and whatever its calls write
+	private Set<String> modified(Stmt.While loop) {
+		Set<String> names = new HashSet<>();
+		ConstantFolder.collectAssigned(loop.body, names);
+		collectDeclared(loop.body, names);
+		Deque<String> calls = new ArrayDeque<>();
+		DeadCodeEliminator.collectCalls(loop, calls);
+		for (String c : calls) {
+			Set<String> w = this.writes.get(c);
+			if (w != null)
+				names.addAll(w);
+		}
+		return names;
+	}
+
+	static void collectDeclared(Stmt s, Set<String> names) {
+		if (s instanceof Stmt.Var v) {
+			names.add(v.name);
+		} else if (s instanceof Stmt.Block b) {
+			for (Stmt c : b.statements)
+				collectDeclared(c, names);
+		} else if (s instanceof Stmt.If i) {
+			collectDeclared(i.thenBranch, names);
+			if (i.elseBranch != null)
+				collectDeclared(i.elseBranch, names);
+		} else if (s instanceof Stmt.While w) {
+			collectDeclared(w.body, names);
+		}
+	}
+
+	// ---------- Hoisting ----------
+
+	private static boolean invariant(Expr e, Set<String> modified) {
+		if (e instanceof Expr.Literal)
+			return true;
+		if (e instanceof Expr.Variable v)
+			return !modified.contains(v.name);
+		if (e instanceof Expr.Unary u)
+			return invariant(u.right, modified);
+		if (e instanceof Expr.Binary b) {
+			if (b.operator == Operator.DIVIDE && !(b.right instanceof Expr.Literal l && !l.value.equals(0)))
+				return false;
+			return invariant(b.left, modified) && invariant(b.right, modified);
+		}
+		return false;
+	}
+
+	private static VarType typeOf(Expr e) {
+		if (e instanceof Expr.Unary u)
+			return u.operator == Operator.MINUS ? VarType.INT : VarType.BOOL;
+		switch (((Expr.Binary) e).operator) {
+			case PLUS:
+			case MINUS:
+			case MULTIPLY:
+			case DIVIDE:
+				return VarType.INT;
+			default:
+				return VarType.BOOL;
+		}
+	}
+
+	// Rewrites one loop's expressions; hoisted maps each expression's text to its temporary
+	private class Hoister implements Stmt.Visitor<Stmt> {
+		final Set<String> modified;
+		final Map<String, Stmt.Var> hoisted = new LinkedHashMap<>();
+		final AstPrinter printer = new AstPrinter();
+
+		Hoister(Set<String> modified) {
+			this.modified = modified;
+		}
+
+		Expr expr(Expr e) {
+			if ((e instanceof Expr.Binary || e instanceof Expr.Unary) && invariant(e, this.modified)) {
+				String key = e.accept(this.printer);
+				Stmt.Var tmp = this.hoisted.get(key);
+				if (tmp == null) {
+					tmp = new Stmt.Var("__licm" + LoopInvariantMotion.this.fresh++, typeOf(e), e, e.line);
+					this.hoisted.put(key, tmp);
+				}
+				return new Expr.Variable(tmp.name, e.line);
+			}
+			if (e instanceof Expr.Binary b)
+				return new Expr.Binary(this.expr(b.left), b.operator, this.expr(b.right), b.line);
+			if (e instanceof Expr.Unary u)
+				return new Expr.Unary(u.operator, this.expr(u.right), u.line);
+			if (e instanceof Expr.Call c) {
+				List<Expr> args = new ArrayList<>();
+				for (Expr a : c.arguments)
+					args.add(this.expr(a));
+				return new Expr.Call(c.name, args, c.line);
+			}
+			return e;
+		}
+
+		@Override
+		public Stmt visitBlockStmt(Stmt.Block stmt) {
+			List<Stmt> body = new ArrayList<>();
+			for (Stmt s : stmt.statements)
+				body.add(s.accept(this));
+			return new Stmt.Block(body, stmt.line);
+		}
+
+		@Override
+		public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+			return new Stmt.Expression(this.expr(stmt.expression), stmt.line);
+		}
+
+		@Override
+		public Stmt visitFunctionStmt(Stmt.Function stmt) {
+			throw new Error("Functions cannot be nested.");
+		}
+
+		@Override
+		public Stmt visitIfStmt(Stmt.If stmt) {
+			return new Stmt.If(this.expr(stmt.condition), stmt.thenBranch.accept(this),
+					stmt.elseBranch == null ? null : stmt.elseBranch.accept(this), stmt.line);
+		}
+
+		@Override
+		public Stmt visitPrintStmt(Stmt.Print stmt) {
+			return new Stmt.Print(this.expr(stmt.expression), stmt.line);
+		}
+
+		@Override
+		public Stmt visitReturnStmt(Stmt.Return stmt) {
+			return stmt.value == null ? stmt : new Stmt.Return(this.expr(stmt.value), stmt.line);
+		}
+
+		@Override
+		public Stmt visitVarStmt(Stmt.Var stmt) {
+			return new Stmt.Var(stmt.name, stmt.type, stmt.initializer == null ? null : this.expr(stmt.initializer),
+					stmt.line);
+		}
+
+		@Override
+		public Stmt visitAssignStmt(Stmt.Assign stmt) {
+			return new Stmt.Assign(stmt.name, this.expr(stmt.value), stmt.line);
+		}
+
+		@Override
+		public Stmt visitWhileStmt(Stmt.While stmt) {
+			return new Stmt.While(this.expr(stmt.condition), stmt.body.accept(this), stmt.line);
+		}
+	}
+
+	// ---------- Statements ----------
+
+	@Override
+	public Stmt visitBlockStmt(Stmt.Block stmt) {
+		List<Stmt> body = new ArrayList<>();
+		for (Stmt s : stmt.statements)
+			body.add(s.accept(this));
+		return new Stmt.Block(body, stmt.line);
+	}
+
+	@Override
+	public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+		return stmt;
+	}
+
+	@Override
+	public Stmt visitFunctionStmt(Stmt.Function stmt) {
+		List<Stmt> body = new ArrayList<>();
+		for (Stmt s : stmt.body)
+			body.add(s.accept(this));
+		return new Stmt.Function(stmt.name, stmt.returnType, stmt.params, body, stmt.line);
+	}
+
+	@Override
+	public Stmt visitIfStmt(Stmt.If stmt) {
+		return new Stmt.If(stmt.condition, stmt.thenBranch.accept(this),
+				stmt.elseBranch == null ? null : stmt.elseBranch.accept(this), stmt.line);
+	}
+
+	@Override
+	public Stmt visitPrintStmt(Stmt.Print stmt) {
+		return stmt;
+	}
+
+	@Override
+	public Stmt visitReturnStmt(Stmt.Return stmt) {
+		return stmt;
+	}
+
+	@Override
+	public Stmt visitVarStmt(Stmt.Var stmt) {
+		return stmt;
+	}
+
+	@Override
+	public Stmt visitAssignStmt(Stmt.Assign stmt) {
+		return stmt;
+	}
+
+	@Override
+	public Stmt visitWhileStmt(Stmt.While stmt) {
+		Hoister h = new Hoister(this.modified(stmt));
+		Expr condition = h.expr(stmt.condition);
+		Stmt body = stmt.body.accept(h);
+
+		// Inner loops may still have expressions that are invariant only in them
+		Stmt.While loop = new Stmt.While(condition, body.accept(this), stmt.line);
+		if (h.hoisted.isEmpty())
+			return loop;
+
+		List<Stmt> block = new ArrayList<>(h.hoisted.values());
+		block.add(loop);
+		return new Stmt.Block(block, stmt.line);
+	}
+}
@@ -1,20 +1,39 @@
 package edu.wisc;
 
 import java.io.IOException;
+import java.io.Writer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.List;
+import java.util.Set;
 import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+import edu.wisc.ir.IrPrinter;
+import edu.wisc.ir.IrProgram;
+import edu.wisc.ir.MipsEmitter;
+
 /** Test harness: compile Badlang -> MIPS, then run in SPIM and assert outputs. */
 public class Main {
+	// Set by --ir: generate code through the SSA IR instead of straight from the AST
+	private static boolean useIr = false;
+	// Set by --dump-ir: print the IR of each compiled program
+	private static boolean dumpIr = false;
+	// Cleared by --no-peephole: skip the peephole pass over the generated assembly
+	private static boolean peephole = true;
+	// Set by --peephole-stats: print how often each peephole rule fired
+	private static boolean peepholeStats = false;
+	// Cleared by --no-parallel-codegen: generate functions one at a time on the main thread
+	private static boolean parallelCodegen = true;
+	// Set by -mdelay: schedule for branch and load delay slots, and run SPIM with them on
+	private static boolean delaySlots = false;
 
-	// ---------- Pipeline: parse -> check -> codegen ----------
-	private static String compileToAsm(String source) {
+	// ---------- Front end: parse -> check -> optimize ----------
+	private static List<Stmt> check(String source) {
 		Lexer lexer = new Lexer(source);
 		Parser parser = new Parser(lexer.scanTokens());
 		List<Stmt> program = parser.parse();
@@ -28,19 +47,105 @@ public class Main {
 				sb.append(e.getMessage()).append('\n');
 			throw new RuntimeException("Checker errors:\n" + sb);
 		}
+		return program;
+	}
+
+	private static List<Stmt> frontEnd(String source) {
+		List<Stmt> program = check(source);
+
+		// Optimizations run on the checked AST, so both backends see the same tree
+		program = new ConstantFolder().fold(program);
+		program = new DeadCodeEliminator().eliminate(program);
+		program = new Inliner().inline(program);
+		// Inlined arguments are often constants, and inlined functions may now be unused
+		program = new ConstantFolder().fold(program);
+		program = new DeadCodeEliminator().eliminate(program);
+		program = new LoopInvariantMotion().hoist(program);
+		program = new StrengthReduction().reduce(program);
+		return program;
+	}
+
+	// ---------- Pipeline: parse -> check -> optimize -> codegen ----------
+	private static void compile(String source, Writer out) throws IOException {
+		List<Stmt> program = frontEnd(source);
+		if (useIr || dumpIr) {
+			IrProgram ir = new IrBuilder().build(program);
+			if (dumpIr) {
+				System.out.println("===== IR =====");
+				System.out.print(IrPrinter.print(ir));
+			}
+			if (useIr) {
+				out.write(schedule(optimize(new MipsEmitter().emit(ir), Set.of("$t8", "$t9"))));
+				return;
+			}
+		}
+		// The stack machine never keeps a value in a $t register across a label, branch or call
+		Peephole p = peephole
+				? new Peephole(Set.of("$t0", "$t1", "$t2", "$t3", "$t4", "$t5", "$t6", "$t7", "$t8", "$t9"))
+				: null;
+		new CodegenVisitor(p, delaySlots ? new Scheduler() : null, parallelCodegen ? ForkJoinPool.commonPool() : null)
+				.generate(program, out);
+		if (p != null)
+			report(p);
+	}
+
+	// Functions are written out as they're generated, so the whole program is never held in memory
+	private static void compileToFile(String source, Path path) throws IOException {
+		try (Writer out = Files.newBufferedWriter(path)) {
+			compile(source, out);
+		}
+	}
+
+	private static String optimize(String asm, Set<String> scratch) {
+		if (!peephole)
+			return asm;
+		Peephole p = new Peephole(scratch);
+		asm = p.optimize(asm);
+		report(p);
+		return asm;
+	}
+
+	private static String schedule(String asm) {
+		return delaySlots ? new Scheduler().schedule(asm) : asm;
+	}
+
+	private static void report(Peephole p) {
+		if (peepholeStats) {
+			System.out.println("===== PEEPHOLE RULE HITS =====");
+			System.out.print(p.report());
+		}
+	}
+
+	// ---------- Profile mode: run the interpreter with the profiler attached ----------
+	private static void profile(Path inputPath) throws IOException {
+		String source = Files.readString(inputPath);
+		// The program as written, so inlined functions still show up and lines match the source
+		List<Stmt> program = check(source);
+
+		Profiler profiler = new Profiler();
+		new Interpreter(profiler).interpret(program);
+
+		try (var report = Files.newBufferedWriter(Path.of("profile.txt"));
+				var folded = Files.newBufferedWriter(Path.of("profile.folded"))) {
+			profiler.writeReport(report, source);
+			profiler.writeFolded(folded);
+		}
+		System.out.println("===== PROFILE (saved to profile.txt, profile.folded) =====");
+		System.out.print(Files.readString(Path.of("profile.txt")));
+	}
 
-		CodegenVisitor cg = new CodegenVisitor();
-		return cg.generate(program);
+	// Code scheduled with -mdelay expects SPIM to model the delay slots
+	private static List<String> spimDelayFlags() {
+		return delaySlots ? List.of("-delayed_branches", "-delayed_loads") : List.of();
 	}
 
 	// ---------- Run SPIM on a given .s file and capture stdout ----------
 	private static String runSpimOn(Path asmPath) throws IOException, InterruptedException {
 		// Use spim directly (we're already running inside WSL)
-		java.util.List<String> cmd = java.util.List.of(
-				"spim",
-				"-exception",
-				"-f",
-				asmPath.toString());
+		java.util.List<String> cmd = new ArrayList<>(java.util.List.of("spim", "-exception"));
+		cmd.addAll(spimDelayFlags());
+		cmd.add("-f");
+		cmd.add(asmPath.toString());
 
 		// (Temporarily) do NOT use -quiet so we can see banners/errors
 		// cmd.add(0, "-quiet");
@@ -79,13 +184,6 @@ public class Main {
 		return out;
 	}
 
-	// ---------- Helper: write a .s file to disk for debugging ----------
-	private static Path writeAsmFile(String asm, String name) throws IOException {
-		Path out = Path.of(name);
-		Files.writeString(out, asm);
-		return out;
-	}
-
 	// ---------- Helper: extract expected output lines from source comments ----------
 	private static List<String> extractExpectLines(String source) {
 		List<String> expects = new ArrayList<>();
@@ -97,12 +195,57 @@ public class Main {
 		return expects;
 	}
 
+	private static String extractExpectError(String source) {
+		Matcher m = Pattern.compile("//\\s*expect-error:\\s*(.*)").matcher(source);
+		return m.find() ? m.group(1).trim() : null;
+	}
+
+	// ---------- Error test: interpret the optimized program, which must fail after its output ----------
+	// SPIM doesn't trap on errors like division by zero, so this checks the optimizations keep them
+	private static boolean errorTest(String blPath, String src, String[] expectContains, String error) {
+		java.io.PrintStream stdout = System.out;
+		java.io.ByteArrayOutputStream printed = new java.io.ByteArrayOutputStream();
+		String failure = null;
+		try {
+			List<Stmt> program = frontEnd(src);
+			System.setOut(new java.io.PrintStream(printed, true));
+			new Interpreter().interpret(program);
+		} catch (BadlangError e) {
+			failure = e.getMessage();
+		} finally {
+			System.setOut(stdout);
+		}
+
+		List<String> lines = printed.toString().lines().toList();
+		if (failure == null || !failure.endsWith(error) || !lines.equals(List.of(expectContains))) {
+			System.out.println("[FAIL] " + blPath + " — expected \"" + error + "\", got " + failure);
+			System.out.println("----- INTERPRETER OUTPUT -----");
+			System.out.print(printed);
+			System.out.println("----- END -----");
+			return false;
+		}
+		System.out.println("[PASS] " + blPath + " (" + error + ")");
+		return true;
+	}
+
+	// ---------- Compile-only test, for programs that never finish running ----------
+	private static boolean compileTest(String blPath, String src) {
+		try {
+			compileToFile(src, Path.of("out.s"));
+			System.out.println("[PASS] " + blPath + " (compiled)");
+			return true;
+		} catch (Throwable t) {
+			System.out.println("[FAIL] " + blPath + " — " + t);
+			return false;
+		}
+	}
+
 	// ---------- One test: compile, run in SPIM, check output contains tokens ----------
 	private static boolean runtimeTest(String blPath, String[] expectContains) {
 		try {
 			String src = Files.readString(Path.of(blPath));
-			String asm = compileToAsm(src);
-			Path sPath = writeAsmFile(asm, "out.s");
+			Path sPath = Path.of("out.s");
+			compileToFile(src, sPath);
 			String spimOut = runSpimOn(sPath);
 			List<String> lines = spimOut.lines().toList();
 
@@ -132,8 +275,50 @@ public class Main {
 		}
 	}
 
+	// ---------- All tests: stop at the first failure ----------
+	private static boolean runSuite(List<Path> testFiles) throws IOException {
+		int passed = 0, total = 0;
+		for (Path p : testFiles) {
+			System.out.println("Running " + p.toString());
+			total++;
+			String src = Files.readString(p);
+			List<String> expects = extractExpectLines(src);
+			String[] needles = expects.toArray(new String[0]);
+			String error = extractExpectError(src);
+			boolean ok = src.contains("// compile-only") ? compileTest(p.toString(), src)
+					: error != null ? errorTest(p.toString(), src, needles, error) : runtimeTest(p.toString(), needles);
+			if (ok)
+				passed++;
+			else
+				break;
+		}
+
+		System.out.printf("Runtime tests: %d/%d passed%n", passed, total);
+		return passed == total;
+	}
+
 	public static void main(String[] args) {
 		try {
+			// ---- Leading flags: --ir, --dump-ir, --no-peephole, --peephole-stats, --no-parallel-codegen, -mdelay ----
+			int first = 0;
+			for (; first < args.length; first++) {
+				if (args[first].equals("--ir"))
+					useIr = true;
+				else if (args[first].equals("--dump-ir"))
+					dumpIr = true;
+				else if (args[first].equals("--no-peephole"))
+					peephole = false;
+				else if (args[first].equals("--peephole-stats"))
+					peepholeStats = true;
+				else if (args[first].equals("--no-parallel-codegen"))
+					parallelCodegen = false;
+				else if (args[first].equals("-mdelay"))
+					delaySlots = true;
+				else
+					break;
+			}
+			args = java.util.Arrays.copyOfRange(args, first, args.length);
+
 			if (args.length == 0) {
 				// ---- No-args mode: run all .bl files in test_programs ----
 				List<Path> testFiles;
@@ -143,43 +328,40 @@ public class Main {
 							.collect(Collectors.toList());
 				}
 
-				int passed = 0, total = 0;
-				for (Path p : testFiles) {
-					System.out.println("Running " + p.toString());
-					total++;
-					String src = Files.readString(p);
-					List<String> expects = extractExpectLines(src);
-					String[] needles = expects.toArray(new String[0]);
-					if (runtimeTest(p.toString(), needles))
-						passed++;
-					else
-						break;
+				boolean ok = runSuite(testFiles);
+				// Scheduled code is only checked by running it with the delay slots on
+				if (ok && !delaySlots) {
+					delaySlots = true;
+					System.out.println("===== With -mdelay =====");
+					ok = runSuite(testFiles);
 				}
-
-				System.out.printf("Runtime tests: %d/%d passed%n", passed, total);
-				if (passed != total)
+				if (!ok)
 					System.exit(1);
 				return;
 			}
 
+			// ---- Profile mode: interpret one program and write profile.txt / profile.folded ----
+			if (args[0].equals("--profile")) {
+				if (args.length < 2)
+					throw new IllegalArgumentException("usage: --profile <file.bl>");
+				profile(Path.of(args[1]));
+				return;
+			}
+
 			// ---- Single-file mode: compile one program, emit out.s, run SPIM ----
 			Path inputPath = Path.of(args[0]);
 			String source = Files.readString(inputPath);
-			String asm = compileToAsm(source);
-
 			Path outS = Path.of("out.s");
-			Files.writeString(outS, asm);
+			compileToFile(source, outS);
 			System.out.println("===== MIPS Assembly (saved to out.s) =====");
-			System.out.println(asm);
+			System.out.println(Files.readString(outS));
 
 			// Call spim directly (we're already inside WSL)
 			String asmArg = outS.toString();
-			java.util.List<String> full = java.util.List.of(
-					"spim",
-					"-quiet",
-					"-exception",
-					"-f",
-					asmArg);
+			java.util.List<String> full = new ArrayList<>(java.util.List.of("spim", "-quiet", "-exception"));
+			full.addAll(spimDelayFlags());
+			full.add("-f");
+			full.add(asmArg);
 
 			Process p = new ProcessBuilder(full).redirectErrorStream(true).start();
 			String out = new String(p.getInputStream().readAllBytes());
@@ -0,0 +1,160 @@
+package edu.wisc;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * One line of MIPS assembly: an instruction with its operands, a label, a
+ * comment or an assembler directive. Instructions know which registers they
+ * read and write, so passes like {@link Peephole} can reason about them
+ * without matching on text.
+ */
+record MipsInstr(Kind kind, String op, List<String> args) {
+	enum Kind {
+		INSTR,
+		LABEL,
+		COMMENT,
+		DIRECTIVE
+	}
+
+	// Opcodes whose first operand is the register they write
+	private static final Set<String> WRITES_FIRST = Set.of("li", "la", "lw", "lb", "lbu", "move", "add", "addu",
+			"addi", "addiu", "sub", "subu", "mul", "and", "andi", "or", "ori", "xor", "xori", "nor", "seq", "sne", "slt",
+			"slti", "sltu", "sltiu", "sle", "sgt", "sge", "mflo", "mfhi", "neg", "negu", "not", "sll", "sra", "srl", "lui");
+	// Instructions without side effects, which can go when nothing reads their result
+	private static final Set<String> PURE = Set.of("li", "la", "lw", "lb", "lbu", "move", "addu", "addiu", "subu", "and",
+			"andi", "or", "ori", "xor", "xori", "nor", "seq", "sne", "slt", "slti", "sltu", "sltiu", "sle", "sgt", "sge",
+			"mflo", "mfhi", "negu", "not", "sll", "sra", "srl", "lui");
+	private static final Set<String> BRANCHES = Set.of("beq", "bne", "beqz", "bnez", "blt", "ble", "bgt", "bge",
+			"bltz", "blez", "bgtz", "bgez");
+
+	static MipsInstr instr(String op, String... args) {
+		return new MipsInstr(Kind.INSTR, op, List.of(args));
+	}
+
+	static MipsInstr label(String name) {
+		return new MipsInstr(Kind.LABEL, name, List.of());
+	}
+
+	static MipsInstr comment(String text) {
+		return new MipsInstr(Kind.COMMENT, text, List.of());
+	}
+
+	static MipsInstr directive(String text) {
+		return new MipsInstr(Kind.DIRECTIVE, text, List.of());
+	}
+
+	// Parses one line as written by the code generators
+	static MipsInstr parse(String line) {
+		String t = line.strip();
+		if (t.isEmpty())
+			return directive("");
+		if (t.startsWith("#"))
+			return comment(t.substring(1).strip());
+		if (t.startsWith(".") || t.contains(":") && !t.endsWith(":"))
+			return directive(line);
+		if (t.endsWith(":"))
+			return label(t.substring(0, t.length() - 1));
+		int space = t.indexOf(' ');
+		if (space < 0)
+			return instr(t);
+		List<String> args = new ArrayList<>();
+		for (String a : t.substring(space + 1).split(","))
+			args.add(a.strip());
+		return new MipsInstr(Kind.INSTR, t.substring(0, space), List.copyOf(args));
+	}
+
+	// Writes code out one line per instruction
+	static void write(List<MipsInstr> code, Writer out) throws IOException {
+		for (MipsInstr in : code) {
+			out.write(in.toString());
+			out.write('\n');
+		}
+	}
+
+	boolean is(String opcode) {
+		return this.kind == Kind.INSTR && this.op.equals(opcode);
+	}
+
+	String arg(int i) {
+		return this.args.get(i);
+	}
+
+	// The register this instruction writes, or null
+	String def() {
+		if (this.kind != Kind.INSTR)
+			return null;
+		if (WRITES_FIRST.contains(this.op))
+			return this.args.get(0);
+		if (this.op.equals("mult") || this.op.equals("div"))
+			return "$lo";
+		if (this.op.equals("jal"))
+			return "$ra";
+		return null;
+	}
+
+	// Registers this instruction reads, including the base register of a memory operand
+	List<String> uses() {
+		List<String> regs = new ArrayList<>();
+		if (this.kind != Kind.INSTR)
+			return regs;
+		int first = WRITES_FIRST.contains(this.op) ? 1 : 0;
+		for (int i = 0; i < this.args.size(); i++) {
+			String a = this.args.get(i);
+			if (i >= first && a.startsWith("$"))
+				regs.add(a);
+			int paren = a.indexOf('(');
+			if (paren >= 0)
+				regs.add(a.substring(paren + 1, a.length() - 1));
+		}
+		switch (this.op) {
+			case "mflo", "mfhi" -> regs.add("$lo");
+			case "syscall" -> {
+				regs.add("$v0");
+				regs.add("$a0");
+			}
+			case "jr" -> regs.add("$v0");
+			default -> {
+			}
+		}
+		return regs;
+	}
+
+	boolean isPure() {
+		return this.kind == Kind.INSTR && PURE.contains(this.op);
+	}
+
+	// Whether control may go somewhere other than the next line
+	boolean isControl() {
+		return this.kind == Kind.INSTR
+				&& (BRANCHES.contains(this.op) || this.op.equals("j") || this.op.equals("jal") || this.op.equals("jr"));
+	}
+
+	// A copy reading register to wherever this one reads from
+	MipsInstr replaceUses(String from, String to) {
+		int first = WRITES_FIRST.contains(this.op) ? 1 : 0;
+		List<String> out = new ArrayList<>();
+		for (int i = 0; i < this.args.size(); i++) {
+			String a = this.args.get(i);
+			out.add(i >= first && a.equals(from) ? to : a);
+		}
+		return new MipsInstr(this.kind, this.op, List.copyOf(out));
+	}
+
+	@Override
+	public String toString() {
+		switch (this.kind) {
+			case LABEL:
+				return this.op + ":";
+			case COMMENT:
+				return "\t# " + this.op;
+			case DIRECTIVE:
+				return this.op;
+			default:
+				return this.args.isEmpty() ? "\t" + this.op : "\t" + this.op + " " + String.join(", ", this.args);
+		}
+	}
+}
@@ -150,7 +150,8 @@ public class Parser {
 		int parenCount = 0;
 		for (; endInd < tokens.size(); endInd++) {
 			Token t = tokens.get(endInd);
-			if (t.type == TokenType.SEMICOLON || t.type == TokenType.COMMA)
+			// A comma inside parentheses separates the arguments of a nested call
+			if (t.type == TokenType.SEMICOLON || t.type == TokenType.COMMA && parenCount == 0)
 				break;
 			if (t.type == TokenType.RIGHT_PAREN) {
 				parenCount -= 1;
@@ -174,9 +175,14 @@ public class Parser {
 		for (int i = current; i < endInd; i++) {
 			// Skip over () since they always have the highest precedence
 			if (tokens.get(i).type == TokenType.LEFT_PAREN) {
+				int depth = 1;
 				do {
 					i++;
-				} while (tokens.get(i).type != TokenType.RIGHT_PAREN);
+					if (tokens.get(i).type == TokenType.LEFT_PAREN)
+						depth++;
+					else if (tokens.get(i).type == TokenType.RIGHT_PAREN)
+						depth--;
+				} while (depth > 0);
 			}
 			if (checkBinOp(i)) {
 				int p = precedence(tokens.get(i));
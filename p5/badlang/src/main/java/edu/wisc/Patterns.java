@@ -0,0 +1,136 @@
+package edu.wisc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntPredicate;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Tree patterns for instruction selection in the AST backend. Each pattern
+ * covers an operator node whose other operand is a literal, or a unary
+ * operator, with a short template that uses MIPS immediate forms instead of
+ * loading the literal into a register first. Patterns are tried in order and
+ * the first one that matches covers the node, so where more than one could
+ * apply the cheaper comes first. Adding a pattern is one more line in
+ * PATTERNS.
+ *
+ * In a template D is the result register, S the register holding the
+ * operand and K the literal, after adjust, which fits has to accept.
+ * Literals on the left of a commutative or comparison operator are matched
+ * as if written on the right.
+ */
+class Patterns {
+	record Pattern(Operator op, boolean unary, IntUnaryOperator adjust, IntPredicate fits, List<MipsInstr> template) {
+		// The template's instructions with its placeholders filled in
+		List<MipsInstr> expand(String d, String s, int k) {
+			List<MipsInstr> code = new ArrayList<>();
+			for (MipsInstr in : this.template) {
+				List<String> args = new ArrayList<>();
+				for (String a : in.args())
+					args.add(switch (a) {
+						case "D" -> d;
+						case "S" -> s;
+						case "K" -> Integer.toString(k);
+						default -> a;
+					});
+				code.add(new MipsInstr(in.kind(), in.op(), List.copyOf(args)));
+			}
+			return code;
+		}
+	}
+
+	// A pattern covering a node, the subtree still to be evaluated into S and the value of K
+	record Match(Pattern pattern, Expr operand, int k) {
+	}
+
+	private static final IntPredicate SIGNED_16 = k -> k >= Short.MIN_VALUE && k <= Short.MAX_VALUE;
+	private static final IntPredicate UNSIGNED_16 = k -> k >= 0 && k <= 0xffff;
+	private static final IntPredicate ZERO = k -> k == 0;
+	private static final IntPredicate ANY = k -> true;
+
+	private static final List<Pattern> PATTERNS = List.of(
+			binary(Operator.PLUS, k -> k, SIGNED_16, "addiu D, S, K"),
+			binary(Operator.MINUS, k -> -k, SIGNED_16, "addiu D, S, K"),
+			binary(Operator.LESS, k -> k, SIGNED_16, "slti D, S, K"),
+			binary(Operator.LESS_EQUAL, k -> k + 1, SIGNED_16, "slti D, S, K"),
+			binary(Operator.GREATER_EQUAL, k -> k, SIGNED_16, "slti D, S, K; xori D, D, 1"),
+			binary(Operator.GREATER, k -> k + 1, SIGNED_16, "slti D, S, K; xori D, D, 1"),
+			binary(Operator.EQUAL, k -> k, ZERO, "sltiu D, S, 1"),
+			binary(Operator.NOT_EQUAL, k -> k, ZERO, "sltu D, $zero, S"),
+			binary(Operator.EQUAL, k -> k, UNSIGNED_16, "xori D, S, K; sltiu D, D, 1"),
+			binary(Operator.NOT_EQUAL, k -> k, UNSIGNED_16, "xori D, S, K; sltu D, $zero, D"),
+			binary(Operator.AND, k -> k, ANY, "andi D, S, K"),
+			binary(Operator.OR, k -> k, ANY, "ori D, S, K"),
+			unary(Operator.NOT, "xori D, S, 1"),
+			unary(Operator.MINUS, "negu D, S"));
+
+	// The operator that gives the same result with its operands swapped
+	private static final Map<Operator, Operator> MIRROR = Map.of(
+			Operator.PLUS, Operator.PLUS,
+			Operator.EQUAL, Operator.EQUAL,
+			Operator.NOT_EQUAL, Operator.NOT_EQUAL,
+			Operator.AND, Operator.AND,
+			Operator.OR, Operator.OR,
+			Operator.LESS, Operator.GREATER,
+			Operator.GREATER, Operator.LESS,
+			Operator.LESS_EQUAL, Operator.GREATER_EQUAL,
+			Operator.GREATER_EQUAL, Operator.LESS_EQUAL);
+
+	private static Pattern binary(Operator op, IntUnaryOperator adjust, IntPredicate fits, String template) {
+		return new Pattern(op, false, adjust, fits, parse(template));
+	}
+
+	private static Pattern unary(Operator op, String template) {
+		return new Pattern(op, true, k -> k, ANY, parse(template));
+	}
+
+	private static List<MipsInstr> parse(String template) {
+		List<MipsInstr> code = new ArrayList<>();
+		for (String line : template.split(";"))
+			code.add(MipsInstr.parse(line));
+		return List.copyOf(code);
+	}
+
+	// Booleans are 0 and 1, as in registers
+	private static Integer value(Expr e) {
+		if (e instanceof Expr.Literal l) {
+			if (l.value instanceof Integer i)
+				return i;
+			if (l.value instanceof Boolean b)
+				return b ? 1 : 0;
+		}
+		return null;
+	}
+
+	// The first pattern covering e, or null if e needs its operands in registers
+	static Match match(Expr e) {
+		if (e instanceof Expr.Unary u) {
+			for (Pattern p : PATTERNS)
+				if (p.unary && p.op == u.operator)
+					return new Match(p, u.right, 0);
+			return null;
+		}
+		if (!(e instanceof Expr.Binary b))
+			return null;
+
+		Operator op = b.operator;
+		Expr operand = b.left;
+		Integer k = value(b.right);
+		if (k == null && MIRROR.containsKey(op)) {
+			op = MIRROR.get(op);
+			operand = b.right;
+			k = value(b.left);
+		}
+		if (k == null)
+			return null;
+		for (Pattern p : PATTERNS) {
+			if (p.unary || p.op != op)
+				continue;
+			int adjusted = p.adjust.applyAsInt(k);
+			if (p.fits.test(adjusted))
+				return new Match(p, operand, adjusted);
+		}
+		return null;
+	}
+}
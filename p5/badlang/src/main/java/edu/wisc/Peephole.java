@@ -0,0 +1,348 @@
+package edu.wisc;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Peephole optimizer over the .text section of generated assembly. Each rule
+ * looks at a small window of instructions starting at some position and may
+ * replace it; the rules are run over the whole program until none apply.
+ *
+ * Some rules need to know a register is dead. That's found by scanning ahead
+ * in straight-line code: a register written before it's read is dead. At a
+ * label, branch or call the scan gives up, and only registers the code
+ * generator promises never carry values across those points count as dead.
+ */
+class Peephole {
+	private interface Rule {
+		String name();
+
+		// Number of instructions the rule looks at
+		int window();
+
+		// Replacement for code.subList(i, i + window()), or null if the rule doesn't apply
+		List<MipsInstr> apply(List<MipsInstr> code, int i);
+	}
+
+	private final Set<String> scratch;
+	private final List<Rule> rules = new ArrayList<>();
+	// Safe to update from several threads optimizing different functions
+	private final Map<String, Integer> hits = new ConcurrentHashMap<>();
+
+	/**
+	 * @param scratch registers that are never live at a label, branch or call
+	 *                in the code being optimized
+	 */
+	Peephole(Set<String> scratch) {
+		this.scratch = scratch;
+		this.rules.add(new PushPop());
+		this.rules.add(new StoreLoad());
+		this.rules.add(new ZeroRegister());
+		this.rules.add(new BranchZero());
+		this.rules.add(new SelfMove());
+		this.rules.add(new DeadWrite());
+		this.rules.add(new ZeroStackAdjust());
+		this.rules.add(new MergeStackAdjust());
+		this.rules.add(new JumpToNext());
+		for (Rule r : this.rules)
+			this.hits.put(r.name(), 0);
+	}
+
+	// Optimizes the .text section of asm, leaving .data alone
+	public String optimize(String asm) {
+		int text = asm.indexOf(".text\n");
+		if (text < 0)
+			return asm;
+		List<MipsInstr> code = new ArrayList<>();
+		for (String line : asm.substring(text).split("\n", -1))
+			code.add(MipsInstr.parse(line));
+		// The split leaves an empty last line for the trailing newline
+		code.remove(code.size() - 1);
+
+		this.run(code);
+
+		StringBuilder sb = new StringBuilder(asm.substring(0, text));
+		for (MipsInstr in : code)
+			sb.append(in).append('\n');
+		return sb.toString();
+	}
+
+	// Optimizes code in place; directives such as the data section are never touched
+	void run(List<MipsInstr> code) {
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int i = 0; i < code.size(); i++) {
+				for (Rule r : this.rules) {
+					if (i + r.window() > code.size())
+						continue;
+					List<MipsInstr> out = r.apply(code, i);
+					if (out == null)
+						continue;
+					List<MipsInstr> window = code.subList(i, i + r.window());
+					window.clear();
+					window.addAll(out);
+					this.hits.merge(r.name(), 1, Integer::sum);
+					changed = true;
+				}
+			}
+		}
+	}
+
+	// How many times each rule fired, in rule order
+	public Map<String, Integer> hits() {
+		Map<String, Integer> ordered = new LinkedHashMap<>();
+		for (Rule r : this.rules)
+			ordered.put(r.name(), this.hits.get(r.name()));
+		return ordered;
+	}
+
+	public String report() {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, Integer> e : this.hits().entrySet())
+			sb.append(String.format("%-20s %d%n", e.getKey(), e.getValue()));
+		return sb.toString();
+	}
+
+	// ---------- Analysis helpers ----------
+
+	// Whether reg's value is never read after code[i]
+	private boolean deadAfter(List<MipsInstr> code, int i, String reg) {
+		for (int j = i + 1; j < code.size(); j++) {
+			MipsInstr in = code.get(j);
+			if (in.kind() == MipsInstr.Kind.LABEL)
+				return this.scratch.contains(reg);
+			if (in.kind() != MipsInstr.Kind.INSTR)
+				continue;
+			if (in.uses().contains(reg))
+				return false;
+			if (reg.equals(in.def()))
+				return true;
+			if (in.isControl())
+				return this.scratch.contains(reg);
+		}
+		return this.scratch.contains(reg);
+	}
+
+	private static boolean isStackAdjust(MipsInstr in, String op) {
+		return in.is(op) && in.arg(0).equals("$sp") && in.arg(1).equals("$sp") && isInt(in.arg(2));
+	}
+
+	private static boolean isInt(String s) {
+		try {
+			Integer.parseInt(s);
+			return true;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	// "($sp)" and "0($sp)" are the same address
+	private static String address(String a) {
+		return a.startsWith("(") ? "0" + a : a;
+	}
+
+	private static List<MipsInstr> moveOrNothing(String dst, String src) {
+		return dst.equals(src) ? List.of() : List.of(MipsInstr.instr("move", dst, src));
+	}
+
+	// ---------- Rules ----------
+
+	// sw R, ($sp); subu $sp, $sp, 4; lw S, 4($sp); addu $sp, $sp, 4  =>  move S, R
+	private static final class PushPop implements Rule {
+		public String name() {
+			return "push-pop";
+		}
+
+		public int window() {
+			return 4;
+		}
+
+		public List<MipsInstr> apply(List<MipsInstr> code, int i) {
+			MipsInstr sw = code.get(i);
+			MipsInstr lw = code.get(i + 2);
+			if (sw.is("sw") && address(sw.arg(1)).equals("0($sp)")
+					&& isStackAdjust(code.get(i + 1), "subu") && code.get(i + 1).arg(2).equals("4")
+					&& lw.is("lw") && lw.arg(1).equals("4($sp)")
+					&& isStackAdjust(code.get(i + 3), "addu") && code.get(i + 3).arg(2).equals("4"))
+				return moveOrNothing(lw.arg(0), sw.arg(0));
+			return null;
+		}
+	}
+
+	// sw R, A; lw S, A  =>  sw R, A; move S, R
+	private static final class StoreLoad implements Rule {
+		public String name() {
+			return "store-load";
+		}
+
+		public int window() {
+			return 2;
+		}
+
+		public List<MipsInstr> apply(List<MipsInstr> code, int i) {
+			MipsInstr sw = code.get(i);
+			MipsInstr lw = code.get(i + 1);
+			if (sw.is("sw") && lw.is("lw") && address(sw.arg(1)).equals(address(lw.arg(1)))) {
+				List<MipsInstr> out = new ArrayList<>();
+				out.add(sw);
+				out.addAll(moveOrNothing(lw.arg(0), sw.arg(0)));
+				return out;
+			}
+			return null;
+		}
+	}
+
+	// li R, 0 followed by an instruction reading R  =>  read $zero instead
+	private final class ZeroRegister implements Rule {
+		public String name() {
+			return "zero-register";
+		}
+
+		public int window() {
+			return 2;
+		}
+
+		public List<MipsInstr> apply(List<MipsInstr> code, int i) {
+			MipsInstr li = code.get(i);
+			MipsInstr next = code.get(i + 1);
+			if (!li.is("li") || !li.arg(1).equals("0") || next.kind() != MipsInstr.Kind.INSTR)
+				return null;
+			String reg = li.arg(0);
+			MipsInstr replaced = next.replaceUses(reg, "$zero");
+			if (replaced.equals(next))
+				return null;
+			// Keep the li if the register is still needed afterwards
+			if (reg.equals(next.def()) || Peephole.this.deadAfter(code, i + 1, reg))
+				return List.of(replaced);
+			return List.of(li, replaced);
+		}
+	}
+
+	// beq R, $zero, L  =>  beqz R, L (and bne likewise)
+	private static final class BranchZero implements Rule {
+		public String name() {
+			return "branch-zero";
+		}
+
+		public int window() {
+			return 1;
+		}
+
+		public List<MipsInstr> apply(List<MipsInstr> code, int i) {
+			MipsInstr b = code.get(i);
+			if ((b.is("beq") || b.is("bne")) && b.arg(1).equals("$zero"))
+				return List.of(MipsInstr.instr(b.op() + "z", b.arg(0), b.arg(2)));
+			return null;
+		}
+	}
+
+	// move R, R  =>  nothing
+	private static final class SelfMove implements Rule {
+		public String name() {
+			return "self-move";
+		}
+
+		public int window() {
+			return 1;
+		}
+
+		public List<MipsInstr> apply(List<MipsInstr> code, int i) {
+			MipsInstr m = code.get(i);
+			if (m.is("move") && m.arg(0).equals(m.arg(1)))
+				return List.of();
+			return null;
+		}
+	}
+
+	// An instruction without side effects whose result is never read  =>  nothing
+	private final class DeadWrite implements Rule {
+		public String name() {
+			return "dead-write";
+		}
+
+		public int window() {
+			return 1;
+		}
+
+		public List<MipsInstr> apply(List<MipsInstr> code, int i) {
+			MipsInstr in = code.get(i);
+			if (in.isPure() && !in.def().equals("$sp") && !in.def().equals("$fp")
+					&& Peephole.this.deadAfter(code, i, in.def()))
+				return List.of();
+			return null;
+		}
+	}
+
+	// subu $sp, $sp, 0 and addu $sp, $sp, 0  =>  nothing
+	private static final class ZeroStackAdjust implements Rule {
+		public String name() {
+			return "zero-stack-adjust";
+		}
+
+		public int window() {
+			return 1;
+		}
+
+		public List<MipsInstr> apply(List<MipsInstr> code, int i) {
+			MipsInstr in = code.get(i);
+			if ((isStackAdjust(in, "subu") || isStackAdjust(in, "addu")) && in.arg(2).equals("0"))
+				return List.of();
+			return null;
+		}
+	}
+
+	// addu $sp, $sp, A; addu $sp, $sp, B  =>  addu $sp, $sp, A+B (and subu likewise)
+	private static final class MergeStackAdjust implements Rule {
+		public String name() {
+			return "merge-stack-adjust";
+		}
+
+		public int window() {
+			return 2;
+		}
+
+		public List<MipsInstr> apply(List<MipsInstr> code, int i) {
+			for (String op : List.of("addu", "subu")) {
+				MipsInstr a = code.get(i);
+				MipsInstr b = code.get(i + 1);
+				if (isStackAdjust(a, op) && isStackAdjust(b, op)) {
+					int sum = Integer.parseInt(a.arg(2)) + Integer.parseInt(b.arg(2));
+					return List.of(MipsInstr.instr(op, "$sp", "$sp", Integer.toString(sum)));
+				}
+			}
+			return null;
+		}
+	}
+
+	// j L directly followed by L:  =>  nothing
+	private static final class JumpToNext implements Rule {
+		public String name() {
+			return "jump-to-next";
+		}
+
+		public int window() {
+			return 1;
+		}
+
+		public List<MipsInstr> apply(List<MipsInstr> code, int i) {
+			MipsInstr j = code.get(i);
+			if (!j.is("j"))
+				return null;
+			for (int k = i + 1; k < code.size(); k++) {
+				MipsInstr in = code.get(k);
+				if (in.kind() == MipsInstr.Kind.COMMENT)
+					continue;
+				if (in.kind() == MipsInstr.Kind.LABEL && in.op().equals(j.arg(0)))
+					return List.of();
+				if (in.kind() != MipsInstr.Kind.LABEL)
+					return null;
+			}
+			return null;
+		}
+	}
+}
@@ -0,0 +1,135 @@
+package edu.wisc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runtime support for print, emitted once into every program the AST backend
+ * generates. Rather than two syscalls per print, values are formatted into an
+ * output buffer that's written with a single print_string syscall when it
+ * fills up and when main returns.
+ *
+ * The routines take their argument in $a0 and may overwrite $t0-$t9 and $v0,
+ * which are never live across a print statement. _rt_flush leaves $a0 alone,
+ * since the print routines call it with their argument still in there.
+ */
+class PrintRuntime {
+	// Bytes of output held before a flush; the buffer has one more for the terminating NUL
+	static final int BUFFER = 256;
+
+	private static final String TEXT = """
+			# Runtime: buffered print
+			_rt_print_int:
+				move $t7, $ra
+				lw $t0, _rt_len
+				# Room for a sign, ten digits and a newline
+				ble $t0, %d, _rt_print_int_room
+				jal _rt_flush
+				move $t0, $zero
+			_rt_print_int_room:
+				la $t1, _rt_buf
+				addu $t1, $t1, $t0
+				# Digits come from the value made negative, which works for the most negative int too
+				move $t2, $a0
+				blez $t2, _rt_print_int_sign
+				negu $t2, $t2
+				j _rt_print_int_digits
+			_rt_print_int_sign:
+				beqz $t2, _rt_print_int_digits
+				li $t3, 45
+				sb $t3, 0($t1)
+				addu $t1, $t1, 1
+			_rt_print_int_digits:
+				# Written backwards into _rt_digits, which ends where _rt_buf starts
+				la $t4, _rt_buf
+				li $t5, 10
+			_rt_print_int_divide:
+				div $t2, $t5
+				mflo $t3
+				mult $t3, $t5
+				mflo $t6
+				subu $t6, $t6, $t2
+				addu $t6, $t6, 48
+				subu $t4, $t4, 1
+				sb $t6, 0($t4)
+				move $t2, $t3
+				bnez $t2, _rt_print_int_divide
+				la $t5, _rt_buf
+			_rt_print_int_copy:
+				lb $t6, 0($t4)
+				sb $t6, 0($t1)
+				addu $t4, $t4, 1
+				addu $t1, $t1, 1
+				bne $t4, $t5, _rt_print_int_copy
+				li $t6, 10
+				sb $t6, 0($t1)
+				addu $t1, $t1, 1
+				subu $t1, $t1, $t5
+				sw $t1, _rt_len
+				jr $t7
+
+			_rt_print_bool:
+				move $t7, $ra
+				lw $t0, _rt_len
+				# Room for "false\\n"
+				ble $t0, %d, _rt_print_bool_room
+				jal _rt_flush
+				move $t0, $zero
+			_rt_print_bool_room:
+				la $t1, _rt_buf
+				addu $t1, $t1, $t0
+				la $t4, _bool_true
+				bnez $a0, _rt_print_bool_copy
+				la $t4, _bool_false
+			_rt_print_bool_copy:
+				lb $t6, 0($t4)
+				beqz $t6, _rt_print_bool_done
+				sb $t6, 0($t1)
+				addu $t4, $t4, 1
+				addu $t1, $t1, 1
+				j _rt_print_bool_copy
+			_rt_print_bool_done:
+				la $t5, _rt_buf
+				subu $t1, $t1, $t5
+				sw $t1, _rt_len
+				jr $t7
+
+			_rt_flush:
+				lw $t8, _rt_len
+				beqz $t8, _rt_flush_done
+				la $t9, _rt_buf
+				addu $t8, $t8, $t9
+				sb $zero, 0($t8)
+				move $t8, $a0
+				move $a0, $t9
+				li $v0, 4
+				syscall
+				move $a0, $t8
+				sw $zero, _rt_len
+			_rt_flush_done:
+				jr $ra
+			""".formatted(BUFFER - 12, BUFFER - 6);
+
+	private static final String DATA = """
+			.data
+			.align 2
+			_rt_len:		.word 0
+			_rt_digits:		.space 12
+			_rt_buf:		.space %d
+			""".formatted(BUFFER + 1);
+
+	static List<MipsInstr> text() {
+		return parse(TEXT);
+	}
+
+	static List<MipsInstr> data() {
+		return parse(DATA);
+	}
+
+	private static List<MipsInstr> parse(String asm) {
+		List<MipsInstr> code = new ArrayList<>();
+		for (String line : asm.split("\n"))
+			code.add(MipsInstr.parse(line));
+		return code;
+	}
+}
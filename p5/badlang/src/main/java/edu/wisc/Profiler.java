@@ -0,0 +1,190 @@
+package edu.wisc;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Opt-in execution profiler for the {@link Interpreter}.
+ * Records per-function call counts with inclusive and exclusive time, per-line
+ * statement execution counts, and a call tree that can be written out as a
+ * folded-stack file for flame graphs.
+ */
+class Profiler {
+	// Not a valid identifier, so no function of the program can share its node
+	static final String TOPLEVEL = "<toplevel>";
+
+	// Aggregate numbers for a single function, across all call paths
+	static class FunctionStats {
+		final String name;
+		long calls;
+		long inclusiveNanos;
+		long exclusiveNanos;
+		// Number of activations currently on the stack, so recursion isn't double counted
+		int active;
+
+		FunctionStats(String name) {
+			this.name = name;
+		}
+	}
+
+	// One node per distinct call path, used for the folded-stack output
+	private static class Node {
+		final String name;
+		final Map<String, Node> children = new LinkedHashMap<>();
+		long selfNanos;
+
+		Node(String name) {
+			this.name = name;
+		}
+
+		Node child(String name) {
+			Node n = this.children.get(name);
+			if (n == null) {
+				n = new Node(name);
+				this.children.put(name, n);
+			}
+			return n;
+		}
+	}
+
+	// A live activation, kept in a preallocated stack to avoid garbage per call
+	private static class Activation {
+		Node node;
+		FunctionStats stats;
+		long start;
+		long childNanos;
+	}
+
+	private final Map<String, FunctionStats> functions = new LinkedHashMap<>();
+	private final Node root = new Node(TOPLEVEL);
+	private Activation[] stack = new Activation[64];
+	private int depth = 0;
+	private long[] lineCounts = new long[256];
+
+	Profiler() {
+		for (int i = 0; i < this.stack.length; i++)
+			this.stack[i] = new Activation();
+		this.stack[0].node = this.root;
+		this.stack[0].stats = this.stats(TOPLEVEL);
+	}
+
+	private FunctionStats stats(String name) {
+		FunctionStats s = this.functions.get(name);
+		if (s == null) {
+			s = new FunctionStats(name);
+			this.functions.put(name, s);
+		}
+		return s;
+	}
+
+	// Called once before the program starts running
+	void start() {
+		Activation a = this.stack[0];
+		a.start = System.nanoTime();
+		a.childNanos = 0;
+		a.stats.calls++;
+		a.stats.active++;
+	}
+
+	// Called once after the program finishes (or throws)
+	void stop() {
+		while (this.depth > 0)
+			this.exit();
+		this.finish(this.stack[0], System.nanoTime());
+	}
+
+	void enter(Stmt.Function fun) {
+		if (++this.depth == this.stack.length) {
+			this.stack = Arrays.copyOf(this.stack, this.stack.length * 2);
+			for (int i = this.depth; i < this.stack.length; i++)
+				this.stack[i] = new Activation();
+		}
+		Activation caller = this.stack[this.depth - 1];
+		Activation a = this.stack[this.depth];
+		a.node = caller.node.child(fun.name);
+		a.stats = this.stats(fun.name);
+		a.stats.calls++;
+		a.stats.active++;
+		a.childNanos = 0;
+		a.start = System.nanoTime();
+	}
+
+	void exit() {
+		long end = System.nanoTime();
+		Activation a = this.stack[this.depth--];
+		long elapsed = this.finish(a, end);
+		this.stack[this.depth].childNanos += elapsed;
+	}
+
+	private long finish(Activation a, long end) {
+		long elapsed = end - a.start;
+		long self = elapsed - a.childNanos;
+		a.node.selfNanos += self;
+		a.stats.exclusiveNanos += self;
+		// Only the outermost activation of a recursive function counts towards inclusive time
+		if (--a.stats.active == 0)
+			a.stats.inclusiveNanos += elapsed;
+		return elapsed;
+	}
+
+	void line(int line) {
+		if (line < 0)
+			return;
+		if (line >= this.lineCounts.length)
+			this.lineCounts = Arrays.copyOf(this.lineCounts, Math.max(line + 1, this.lineCounts.length * 2));
+		this.lineCounts[line]++;
+	}
+
+	/**
+	 * Writes a human readable report: a per-function table sorted by exclusive
+	 * time, followed by execution counts for every line that ran. If the program
+	 * source is given, each line count is shown next to its source text.
+	 */
+	void writeReport(Writer out, String source) throws IOException {
+		List<FunctionStats> funs = new ArrayList<>(this.functions.values());
+		funs.sort((a, b) -> Long.compare(b.exclusiveNanos, a.exclusiveNanos));
+		long total = Math.max(1, this.functions.get(TOPLEVEL).inclusiveNanos);
+
+		out.write(String.format("%-24s %10s %14s %14s %7s%n", "function", "calls", "inclusive(us)", "exclusive(us)",
+				"excl%"));
+		for (FunctionStats s : funs) {
+			out.write(String.format("%-24s %10d %14d %14d %6.2f%%%n", s.name, s.calls, s.inclusiveNanos / 1000,
+					s.exclusiveNanos / 1000, 100.0 * s.exclusiveNanos / total));
+		}
+
+		out.write(String.format("%n%6s %12s  %s%n", "line", "count", "source"));
+		String[] lines = source == null ? new String[0] : source.split("\n", -1);
+		for (int i = 0; i < this.lineCounts.length; i++) {
+			if (this.lineCounts[i] == 0)
+				continue;
+			String text = i >= 1 && i <= lines.length ? lines[i - 1].strip() : "";
+			out.write(String.format("%6d %12d  %s%n", i, this.lineCounts[i], text));
+		}
+	}
+
+	/**
+	 * Writes one line per call path in the folded-stack format understood by
+	 * flamegraph.pl: frames separated by ';', then the exclusive time in microseconds.
+	 */
+	void writeFolded(Writer out) throws IOException {
+		Map<String, Long> folded = new LinkedHashMap<>();
+		this.fold(this.root, TOPLEVEL, folded);
+		for (var e : folded.entrySet()) {
+			out.write(e.getKey() + " " + e.getValue() + "\n");
+		}
+	}
+
+	private void fold(Node node, String path, Map<String, Long> folded) {
+		long micros = node.selfNanos / 1000;
+		if (micros > 0)
+			folded.merge(path, micros, Long::sum);
+		for (Node c : node.children.values()) {
+			this.fold(c, path + ";" + c.name, folded);
+		}
+	}
+}
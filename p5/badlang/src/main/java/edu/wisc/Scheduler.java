@@ -0,0 +1,347 @@
+package edu.wisc;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Schedules generated code for a pipeline with delay slots, as SPIM models it
+ * with -delayed_branches and -delayed_loads. The instruction after a branch
+ * or jump always runs, and the register a load writes can't be read by the
+ * very next instruction. On top of that, a mult or div issued within two
+ * instructions of an mfhi or mflo would clobber the value being read.
+ *
+ * Code is cut into basic blocks at labels, directives, branches, jumps and
+ * syscalls. Each block's instructions are list scheduled over their
+ * dependences, critical path first, which spaces loads from their uses and
+ * mult and div from the mflo or mfhi waiting for them. A block ending in a
+ * branch or jump fills the delay slot with a one-word instruction nothing
+ * else in the block depends on; only when there's no such instruction, or no
+ * legal order, does a nop go in. Comments move with the instruction that
+ * follows them.
+ */
+class Scheduler {
+	// Cycles until a value can be used, where that's more than the next instruction
+	private static final int LOAD_LATENCY = 2;
+	private static final int MULT_LATENCY = 5;
+	private static final int DIV_LATENCY = 35;
+	// Instructions that must separate an mfhi or mflo from a following mult or div
+	private static final int HILO_GAP = 2;
+
+	private static final Set<String> LOADS = Set.of("lw", "lb", "lbu");
+	private static final Set<String> STORES = Set.of("sw", "sb");
+
+	/*
+	 * What SPIM assembles to a single word. Only that first word would run in
+	 * a delay slot, so pseudo-ops that expand further can't go there: la, li
+	 * beyond 16 bits, stores to a label, and the compare pseudo-ops.
+	 */
+	private static final Set<String> REGISTER_OPS = Set.of("add", "addu", "sub", "subu", "and", "or", "xor", "nor",
+			"slt", "sltu", "sgt", "sgtu", "sllv", "srav", "srlv", "move", "neg", "negu", "not");
+	// Ops whose last operand may instead be a 16-bit immediate, signed or not
+	private static final Set<String> SIGNED_IMMEDIATE = Set.of("add", "addu", "addi", "addiu", "slt", "sltu", "slti",
+			"sltiu");
+	private static final Set<String> UNSIGNED_IMMEDIATE = Set.of("and", "or", "xor", "andi", "ori", "xori");
+	private static final Set<String> SHIFTS = Set.of("sll", "sra", "srl", "lui");
+	private static final Pattern BASE_OFFSET = Pattern.compile("(-?\\d+)\\(\\$\\w+\\)");
+
+	private static final class Node {
+		final MipsInstr in;
+		// Comments that came just before the instruction
+		final List<MipsInstr> comments;
+		final int index;
+		final List<Node> succs = new ArrayList<>();
+		final List<Integer> latencies = new ArrayList<>();
+		int preds;
+		// Longest path to the end of the block, in cycles
+		int height;
+
+		Node(MipsInstr in, List<MipsInstr> comments, int index) {
+			this.in = in;
+			this.comments = comments;
+			this.index = index;
+		}
+
+		void edge(Node to, int latency) {
+			this.succs.add(to);
+			this.latencies.add(latency);
+			to.preds++;
+		}
+	}
+
+	// Schedules the .text section of asm, leaving .data alone
+	public String schedule(String asm) {
+		int text = asm.indexOf(".text\n");
+		if (text < 0)
+			return asm;
+		List<MipsInstr> code = new ArrayList<>();
+		for (String line : asm.substring(text).split("\n", -1))
+			code.add(MipsInstr.parse(line));
+		// The split leaves an empty last line for the trailing newline
+		code.remove(code.size() - 1);
+
+		this.run(code);
+
+		StringBuilder sb = new StringBuilder(asm.substring(0, text));
+		for (MipsInstr in : code)
+			sb.append(in).append('\n');
+		return sb.toString();
+	}
+
+	// Schedules code in place, one basic block at a time
+	void run(List<MipsInstr> code) {
+		List<MipsInstr> out = new ArrayList<>();
+		List<MipsInstr> block = new ArrayList<>();
+		for (MipsInstr in : code) {
+			if (in.kind() == MipsInstr.Kind.LABEL || in.kind() == MipsInstr.Kind.DIRECTIVE) {
+				this.block(block, null, out);
+				out.add(in);
+			} else if (in.isControl() || in.is("syscall")) {
+				this.block(block, in, out);
+			} else {
+				block.add(in);
+			}
+		}
+		this.block(block, null, out);
+		code.clear();
+		code.addAll(out);
+	}
+
+	// ---------- Dependences ----------
+
+	private static boolean isLoad(MipsInstr in) {
+		return LOADS.contains(in.op());
+	}
+
+	private static boolean isMemory(MipsInstr in) {
+		return isLoad(in) || STORES.contains(in.op());
+	}
+
+	private static boolean writesHiLo(MipsInstr in) {
+		return in.is("mult") || in.is("div");
+	}
+
+	private static boolean readsHiLo(MipsInstr in) {
+		return in.is("mflo") || in.is("mfhi");
+	}
+
+	// How long after in its result can be read
+	private static int latency(MipsInstr in) {
+		if (isLoad(in))
+			return LOAD_LATENCY;
+		if (in.is("mult"))
+			return MULT_LATENCY;
+		if (in.is("div"))
+			return DIV_LATENCY;
+		return 1;
+	}
+
+	/*
+	 * Links each instruction to the ones that must stay after it: readers of
+	 * a register after its last writer, the next writer after its readers
+	 * and writer, and memory accesses in order around every store.
+	 */
+	private static void link(List<Node> nodes) {
+		Map<String, Node> lastDef = new HashMap<>();
+		Map<String, List<Node>> usesSinceDef = new HashMap<>();
+		Node lastStore = null;
+		List<Node> memSinceStore = new ArrayList<>();
+		for (Node n : nodes) {
+			for (String r : n.in.uses()) {
+				Node d = lastDef.get(r);
+				if (d != null)
+					d.edge(n, latency(d.in));
+			}
+			String def = n.in.def();
+			if (def != null) {
+				for (Node u : usesSinceDef.getOrDefault(def, List.of()))
+					if (u != n)
+						u.edge(n, 1);
+				Node d = lastDef.get(def);
+				if (d != null)
+					d.edge(n, 1);
+			}
+			if (isMemory(n.in)) {
+				if (lastStore != null)
+					lastStore.edge(n, 1);
+				if (STORES.contains(n.in.op())) {
+					for (Node m : memSinceStore)
+						m.edge(n, 1);
+					memSinceStore.clear();
+					lastStore = n;
+				} else {
+					memSinceStore.add(n);
+				}
+			}
+
+			for (String r : n.in.uses())
+				usesSinceDef.computeIfAbsent(r, k -> new ArrayList<>()).add(n);
+			if (def != null) {
+				lastDef.put(def, n);
+				usesSinceDef.put(def, new ArrayList<>());
+			}
+		}
+
+		for (int i = nodes.size() - 1; i >= 0; i--) {
+			Node n = nodes.get(i);
+			for (int s = 0; s < n.succs.size(); s++)
+				n.height = Math.max(n.height, n.latencies.get(s) + n.succs.get(s).height);
+		}
+	}
+
+	// ---------- Scheduling ----------
+
+	// The instructions out holds from start on, most recent first, skipping comments
+	private static List<MipsInstr> recent(List<MipsInstr> out, int start, int count) {
+		List<MipsInstr> instrs = new ArrayList<>();
+		for (int i = out.size() - 1; i >= start && instrs.size() < count; i--)
+			if (out.get(i).kind() == MipsInstr.Kind.INSTR)
+				instrs.add(out.get(i));
+		return instrs;
+	}
+
+	// Whether in can go right after the instructions already in out
+	private static boolean legal(MipsInstr in, List<MipsInstr> out, int start) {
+		List<MipsInstr> recent = recent(out, start, HILO_GAP);
+		if (!recent.isEmpty() && isLoad(recent.get(0)) && in.uses().contains(recent.get(0).def()))
+			return false;
+		if (writesHiLo(in)) {
+			for (MipsInstr r : recent)
+				if (readsHiLo(r))
+					return false;
+		}
+		return true;
+	}
+
+	private static boolean fits(String k, int min, int max) {
+		try {
+			int v = Integer.parseInt(k);
+			return v >= min && v <= max;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	private static boolean oneWord(MipsInstr in) {
+		String last = in.args().isEmpty() ? "" : in.arg(in.args().size() - 1);
+		if (STORES.contains(in.op())) {
+			Matcher m = BASE_OFFSET.matcher(last);
+			return m.matches() && fits(m.group(1), Short.MIN_VALUE, Short.MAX_VALUE);
+		}
+		if (in.is("li"))
+			return fits(last, Short.MIN_VALUE, 0xffff);
+		if (SHIFTS.contains(in.op()))
+			return true;
+		if (last.startsWith("$"))
+			return REGISTER_OPS.contains(in.op());
+		if (SIGNED_IMMEDIATE.contains(in.op()))
+			return fits(last, Short.MIN_VALUE, Short.MAX_VALUE);
+		return UNSIGNED_IMMEDIATE.contains(in.op()) && fits(last, 0, 0xffff);
+	}
+
+	/*
+	 * What can't go in a delay slot: anything SPIM expands past one word, and
+	 * loads and HI/LO instructions, whose results the next block might need
+	 * straight away.
+	 */
+	private static boolean canFillSlot(MipsInstr in) {
+		return oneWord(in) && !isLoad(in) && !writesHiLo(in) && !readsHiLo(in);
+	}
+
+	/*
+	 * Writes the block's instructions to out in a new order, followed by end
+	 * and its delay slot if it has one.
+	 */
+	private void block(List<MipsInstr> block, MipsInstr end, List<MipsInstr> out) {
+		List<Node> nodes = new ArrayList<>();
+		List<MipsInstr> comments = new ArrayList<>();
+		for (MipsInstr in : block) {
+			if (in.kind() == MipsInstr.Kind.COMMENT) {
+				comments.add(in);
+			} else {
+				nodes.add(new Node(in, comments, nodes.size()));
+				comments = new ArrayList<>();
+			}
+		}
+		Node last = end == null ? null : new Node(end, comments, nodes.size());
+		block.clear();
+		if (last == null && nodes.isEmpty()) {
+			out.addAll(comments);
+			return;
+		}
+		List<Node> all = new ArrayList<>(nodes);
+		if (last != null)
+			all.add(last);
+		link(all);
+
+		// The latest instruction that nothing after it depends on fills the delay slot
+		Node slot = null;
+		if (last != null && last.in.isControl()) {
+			for (Node n : nodes)
+				if (n.succs.isEmpty() && canFillSlot(n.in))
+					slot = n;
+		}
+
+		int start = out.size();
+		List<Node> ready = new ArrayList<>();
+		for (Node n : nodes)
+			if (n.preds == 0 && n != slot)
+				ready.add(n);
+		int remaining = nodes.size() - (slot == null ? 0 : 1);
+		while (remaining > 0) {
+			Node best = null;
+			for (Node n : ready) {
+				if (!legal(n.in, out, start))
+					continue;
+				if (best == null || n.height > best.height || n.height == best.height && n.index < best.index)
+					best = n;
+			}
+			if (best == null) {
+				out.add(MipsInstr.instr("nop"));
+				continue;
+			}
+			ready.remove(best);
+			remaining--;
+			out.addAll(best.comments);
+			out.add(best.in);
+			for (Node s : best.succs)
+				if (--s.preds == 0 && s != last && s != slot)
+					ready.add(s);
+		}
+
+		if (last != null) {
+			while (!legal(last.in, out, start))
+				out.add(MipsInstr.instr("nop"));
+			out.addAll(last.comments);
+			out.add(last.in);
+			if (last.in.isControl()) {
+				if (slot == null) {
+					out.add(MipsInstr.instr("nop"));
+				} else {
+					out.addAll(slot.comments);
+					out.add(slot.in);
+				}
+				return;
+			}
+		}
+
+		// Control falls into whatever comes next, which mustn't see a pending load or HI/LO read
+		List<MipsInstr> recent = recent(out, start, HILO_GAP);
+		if (isLoad(recent.get(0)))
+			out.add(MipsInstr.instr("nop"));
+		for (int i = 0; i < recent.size(); i++) {
+			if (readsHiLo(recent.get(i))) {
+				// i instructions already follow it
+				for (int pad = HILO_GAP - i; pad > 0; pad--)
+					out.add(MipsInstr.instr("nop"));
+				break;
+			}
+		}
+		if (last == null)
+			out.addAll(comments);
+	}
+}
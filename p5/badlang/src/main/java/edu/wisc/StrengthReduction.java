@@ -0,0 +1,420 @@
+package edu.wisc;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Strength reduction of multiplication and division by constants.
+ * {@link #shifts} says how the code generator can multiply by a constant with
+ * shifts and an add or subtract instead of mult, for the constants where
+ * that's cheaper. {@link #magic} gives the multiplier and shift that turn
+ * signed division by a constant into a multiply by its approximate
+ * reciprocal (Hacker's Delight, chapter 10), avoiding div altogether.
+ *
+ * The pass itself works on while loops. A basic induction variable is one the
+ * loop assigns exactly once, in a statement directly in its body of the form
+ * i = i + c or i = i - c. Uses of i * k in the loop then track a temporary
+ * that starts at i * k and is stepped by c * k right after i is:
+ * <pre>
+ * while (i &lt; n) { a = a + i * 12; i = i + 1; }
+ *   =&gt;   { int __iv0 = i * 12; while (i &lt; n) { a = a + __iv0; i = i + 1; __iv0 = __iv0 + 12; } }
+ * </pre>
+ * Ints wrap, so the temporary equals i * k even when the product overflows. A
+ * k is only reduced when its uses cost more than the one addition per
+ * iteration that replaces them.
+ */
+class StrengthReduction implements Stmt.Visitor<Stmt> {
+	// mult, mflo and the wait for the product
+	static final int MULT_COST = 4;
+
+	/**
+	 * x * k as (x << high) + (x << low), or minus when subtract is set, then
+	 * negated if negate is set. low is -1 when there's only the one shift.
+	 */
+	record Shifts(int high, int low, boolean subtract, boolean negate) {
+		int cost() {
+			int n = this.low < 0 ? (this.high > 0 ? 1 : 0) : (this.low > 0 ? 3 : 2);
+			return this.negate ? n + 1 : n;
+		}
+	}
+
+	/**
+	 * n / d is the high word of n * multiplier, plus n when d &gt; 0 and the
+	 * multiplier is negative, minus n when d &lt; 0 and it's positive, shifted
+	 * right arithmetically by shift, plus one if that's negative.
+	 */
+	record Magic(int multiplier, int shift) {
+	}
+
+	// Names some function assigns outside its own scope
+	private final Set<String> globalWrites = new HashSet<>();
+	private int fresh;
+
+	public List<Stmt> reduce(List<Stmt> program) {
+		this.globalWrites.clear();
+		this.fresh = 0;
+		for (Stmt s : program) {
+			if (s instanceof Stmt.Function f) {
+				Deque<Set<String>> scopes = new ArrayDeque<>();
+				Set<String> params = new HashSet<>();
+				for (var p : f.params)
+					params.add(p.name());
+				scopes.push(params);
+				for (Stmt b : f.body)
+					LoopInvariantMotion.freeWrites(b, scopes, this.globalWrites);
+			}
+		}
+
+		List<Stmt> out = new ArrayList<>();
+		for (Stmt s : program)
+			out.add(s.accept(this));
+		return out;
+	}
+
+	// ---------- Constant multiplication ----------
+
+	// How to multiply by k without mult, or null if mult is as cheap
+	static Shifts shifts(int k) {
+		// Powers of two, including the most negative int
+		if (Integer.bitCount(k) == 1)
+			return new Shifts(Integer.numberOfTrailingZeros(k), -1, false, false);
+		boolean negate = k < 0;
+		int m = negate ? -k : k;
+		Shifts s;
+		if (m == 0) {
+			return null;
+		} else if (Integer.bitCount(m) == 1) {
+			s = new Shifts(Integer.numberOfTrailingZeros(m), -1, false, negate);
+		} else if (Integer.bitCount(m) == 2) {
+			s = new Shifts(31 - Integer.numberOfLeadingZeros(m), Integer.numberOfTrailingZeros(m), false, negate);
+		} else {
+			// A single run of ones, 2^high - 2^low
+			long top = (long) m + Integer.lowestOneBit(m);
+			if (Long.bitCount(top) != 1)
+				return null;
+			s = new Shifts(Long.numberOfTrailingZeros(top), Integer.numberOfTrailingZeros(m), true, negate);
+		}
+		return s.cost() < MULT_COST ? s : null;
+	}
+
+	static int multiplyCost(int k) {
+		Shifts s = shifts(k);
+		return s == null ? MULT_COST : s.cost();
+	}
+
+	// The magic number for dividing by d, which mustn't be -1, 0, 1 or a power of two up to sign
+	static Magic magic(int d) {
+		final int two31 = 0x80000000;
+		int ad = Math.abs(d);
+		int t = two31 + (d >>> 31);
+		// Largest value of n with rem(n, d) = d - 1, the absolute value of nc
+		int anc = t - 1 - Integer.remainderUnsigned(t, ad);
+		int p = 31;
+		int q1 = Integer.divideUnsigned(two31, anc);
+		int r1 = two31 - q1 * anc;
+		int q2 = Integer.divideUnsigned(two31, ad);
+		int r2 = two31 - q2 * ad;
+		int delta;
+		do {
+			p++;
+			q1 = 2 * q1;
+			r1 = 2 * r1;
+			if (Integer.compareUnsigned(r1, anc) >= 0) {
+				q1++;
+				r1 -= anc;
+			}
+			q2 = 2 * q2;
+			r2 = 2 * r2;
+			if (Integer.compareUnsigned(r2, ad) >= 0) {
+				q2++;
+				r2 -= ad;
+			}
+			delta = ad - r2;
+		} while (Integer.compareUnsigned(q1, delta) < 0 || q1 == delta && r1 == 0);
+		int m = q2 + 1;
+		return new Magic(d < 0 ? -m : m, p - 32);
+	}
+
+	// ---------- Induction variables ----------
+
+	// The step of an i = i + c, i = c + i or i = i - c statement, or null
+	private static Integer step(Stmt s) {
+		if (!(s instanceof Stmt.Assign a) || !(a.value instanceof Expr.Binary b))
+			return null;
+		if (b.operator == Operator.PLUS && b.left instanceof Expr.Literal l && l.value instanceof Integer c
+				&& b.right instanceof Expr.Variable v && v.name.equals(a.name))
+			return c;
+		if (b.left instanceof Expr.Variable v && v.name.equals(a.name)
+				&& b.right instanceof Expr.Literal l && l.value instanceof Integer c) {
+			if (b.operator == Operator.PLUS)
+				return c;
+			if (b.operator == Operator.MINUS)
+				return -c;
+		}
+		return null;
+	}
+
+	private static int countAssigns(Stmt s, String name) {
+		if (s instanceof Stmt.Assign a)
+			return a.name.equals(name) ? 1 : 0;
+		int n = 0;
+		if (s instanceof Stmt.Block b) {
+			for (Stmt c : b.statements)
+				n += countAssigns(c, name);
+		} else if (s instanceof Stmt.If i) {
+			n += countAssigns(i.thenBranch, name);
+			if (i.elseBranch != null)
+				n += countAssigns(i.elseBranch, name);
+		} else if (s instanceof Stmt.While w) {
+			n += countAssigns(w.body, name);
+		}
+		return n;
+	}
+
+	// The constant k of an iv * k or k * iv, or null
+	private static Integer factor(Expr e, String iv) {
+		if (!(e instanceof Expr.Binary b) || b.operator != Operator.MULTIPLY)
+			return null;
+		if (b.left instanceof Expr.Variable v && v.name.equals(iv) && b.right instanceof Expr.Literal l
+				&& l.value instanceof Integer k)
+			return k;
+		if (b.right instanceof Expr.Variable v && v.name.equals(iv) && b.left instanceof Expr.Literal l
+				&& l.value instanceof Integer k)
+			return k;
+		return null;
+	}
+
+	// Total cost of each k's multiplications in the loop, in the order they're first seen
+	private static void countUses(Expr e, String iv, Map<Integer, Integer> cost) {
+		Integer k = factor(e, iv);
+		if (k != null) {
+			cost.merge(k, multiplyCost(k), Integer::sum);
+		} else if (e instanceof Expr.Binary b) {
+			countUses(b.left, iv, cost);
+			countUses(b.right, iv, cost);
+		} else if (e instanceof Expr.Unary u) {
+			countUses(u.right, iv, cost);
+		} else if (e instanceof Expr.Call c) {
+			for (Expr a : c.arguments)
+				countUses(a, iv, cost);
+		}
+	}
+
+	private static void countUses(Stmt s, String iv, Map<Integer, Integer> cost) {
+		if (s instanceof Stmt.Block b) {
+			for (Stmt c : b.statements)
+				countUses(c, iv, cost);
+		} else if (s instanceof Stmt.Expression e) {
+			countUses(e.expression, iv, cost);
+		} else if (s instanceof Stmt.If i) {
+			countUses(i.condition, iv, cost);
+			countUses(i.thenBranch, iv, cost);
+			if (i.elseBranch != null)
+				countUses(i.elseBranch, iv, cost);
+		} else if (s instanceof Stmt.Print p) {
+			countUses(p.expression, iv, cost);
+		} else if (s instanceof Stmt.Return r) {
+			if (r.value != null)
+				countUses(r.value, iv, cost);
+		} else if (s instanceof Stmt.Var v) {
+			if (v.initializer != null)
+				countUses(v.initializer, iv, cost);
+		} else if (s instanceof Stmt.Assign a) {
+			countUses(a.value, iv, cost);
+		} else if (s instanceof Stmt.While w) {
+			countUses(w.condition, iv, cost);
+			countUses(w.body, iv, cost);
+		}
+	}
+
+	// Rewrites one induction variable's products to their temporaries
+	private static class Replacer implements Stmt.Visitor<Stmt> {
+		final String iv;
+		final Map<Integer, String> temps;
+
+		Replacer(String iv, Map<Integer, String> temps) {
+			this.iv = iv;
+			this.temps = temps;
+		}
+
+		Expr expr(Expr e) {
+			Integer k = factor(e, this.iv);
+			if (k != null && this.temps.containsKey(k))
+				return new Expr.Variable(this.temps.get(k), e.line);
+			if (e instanceof Expr.Binary b)
+				return new Expr.Binary(this.expr(b.left), b.operator, this.expr(b.right), b.line);
+			if (e instanceof Expr.Unary u)
+				return new Expr.Unary(u.operator, this.expr(u.right), u.line);
+			if (e instanceof Expr.Call c) {
+				List<Expr> args = new ArrayList<>();
+				for (Expr a : c.arguments)
+					args.add(this.expr(a));
+				return new Expr.Call(c.name, args, c.line);
+			}
+			return e;
+		}
+
+		@Override
+		public Stmt visitBlockStmt(Stmt.Block stmt) {
+			List<Stmt> body = new ArrayList<>();
+			for (Stmt s : stmt.statements)
+				body.add(s.accept(this));
+			return new Stmt.Block(body, stmt.line);
+		}
+
+		@Override
+		public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+			return new Stmt.Expression(this.expr(stmt.expression), stmt.line);
+		}
+
+		@Override
+		public Stmt visitFunctionStmt(Stmt.Function stmt) {
+			throw new Error("Functions cannot be nested.");
+		}
+
+		@Override
+		public Stmt visitIfStmt(Stmt.If stmt) {
+			return new Stmt.If(this.expr(stmt.condition), stmt.thenBranch.accept(this),
+					stmt.elseBranch == null ? null : stmt.elseBranch.accept(this), stmt.line);
+		}
+
+		@Override
+		public Stmt visitPrintStmt(Stmt.Print stmt) {
+			return new Stmt.Print(this.expr(stmt.expression), stmt.line);
+		}
+
+		@Override
+		public Stmt visitReturnStmt(Stmt.Return stmt) {
+			return stmt.value == null ? stmt : new Stmt.Return(this.expr(stmt.value), stmt.line);
+		}
+
+		@Override
+		public Stmt visitVarStmt(Stmt.Var stmt) {
+			return new Stmt.Var(stmt.name, stmt.type, stmt.initializer == null ? null : this.expr(stmt.initializer),
+					stmt.line);
+		}
+
+		@Override
+		public Stmt visitAssignStmt(Stmt.Assign stmt) {
+			return new Stmt.Assign(stmt.name, this.expr(stmt.value), stmt.line);
+		}
+
+		@Override
+		public Stmt visitWhileStmt(Stmt.While stmt) {
+			return new Stmt.While(this.expr(stmt.condition), stmt.body.accept(this), stmt.line);
+		}
+	}
+
+	// ---------- Statements ----------
+
+	@Override
+	public Stmt visitBlockStmt(Stmt.Block stmt) {
+		List<Stmt> body = new ArrayList<>();
+		for (Stmt s : stmt.statements)
+			body.add(s.accept(this));
+		return new Stmt.Block(body, stmt.line);
+	}
+
+	@Override
+	public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+		return stmt;
+	}
+
+	@Override
+	public Stmt visitFunctionStmt(Stmt.Function stmt) {
+		List<Stmt> body = new ArrayList<>();
+		for (Stmt s : stmt.body)
+			body.add(s.accept(this));
+		return new Stmt.Function(stmt.name, stmt.returnType, stmt.params, body, stmt.line);
+	}
+
+	@Override
+	public Stmt visitIfStmt(Stmt.If stmt) {
+		return new Stmt.If(stmt.condition, stmt.thenBranch.accept(this),
+				stmt.elseBranch == null ? null : stmt.elseBranch.accept(this), stmt.line);
+	}
+
+	@Override
+	public Stmt visitPrintStmt(Stmt.Print stmt) {
+		return stmt;
+	}
+
+	@Override
+	public Stmt visitReturnStmt(Stmt.Return stmt) {
+		return stmt;
+	}
+
+	@Override
+	public Stmt visitVarStmt(Stmt.Var stmt) {
+		return stmt;
+	}
+
+	@Override
+	public Stmt visitAssignStmt(Stmt.Assign stmt) {
+		return stmt;
+	}
+
+	@Override
+	public Stmt visitWhileStmt(Stmt.While stmt) {
+		if (!(stmt.body instanceof Stmt.Block block))
+			return new Stmt.While(stmt.condition, stmt.body.accept(this), stmt.line);
+
+		Set<String> declared = new HashSet<>();
+		LoopInvariantMotion.collectDeclared(block, declared);
+		Deque<String> calls = new ArrayDeque<>();
+		DeadCodeEliminator.collectCalls(stmt, calls);
+
+		Expr condition = stmt.condition;
+		List<Stmt> body = new ArrayList<>(block.statements);
+		List<Stmt> before = new ArrayList<>();
+		for (int n = 0; n < body.size(); n++) {
+			Integer step = step(body.get(n));
+			if (step == null)
+				continue;
+			String iv = ((Stmt.Assign) body.get(n)).name;
+			// A call could change it behind the loop's back
+			if (countAssigns(new Stmt.Block(body, block.line), iv) != 1 || declared.contains(iv)
+					|| !calls.isEmpty() && this.globalWrites.contains(iv))
+				continue;
+
+			Map<Integer, Integer> cost = new LinkedHashMap<>();
+			countUses(condition, iv, cost);
+			for (Stmt b : body)
+				countUses(b, iv, cost);
+			Map<Integer, String> temps = new LinkedHashMap<>();
+			for (var e : cost.entrySet())
+				if (e.getValue() > 1)
+					temps.put(e.getKey(), "__iv" + this.fresh++);
+			if (temps.isEmpty())
+				continue;
+
+			Replacer r = new Replacer(iv, temps);
+			condition = r.expr(condition);
+			List<Stmt> rewritten = new ArrayList<>();
+			for (Stmt b : body)
+				rewritten.add(b.accept(r));
+			int line = body.get(n).line;
+			for (var t : temps.entrySet()) {
+				Expr next = new Expr.Binary(new Expr.Variable(t.getValue(), line), Operator.PLUS,
+						new Expr.Literal(step * t.getKey(), line), line);
+				rewritten.add(++n, new Stmt.Assign(t.getValue(), next, line));
+				before.add(new Stmt.Var(t.getValue(), VarType.INT, new Expr.Binary(new Expr.Variable(iv, stmt.line),
+						Operator.MULTIPLY, new Expr.Literal(t.getKey(), stmt.line), stmt.line), stmt.line));
+			}
+			body = rewritten;
+		}
+
+		// Inner loops may have induction variables of their own
+		Stmt.While loop = new Stmt.While(condition, new Stmt.Block(body, block.line).accept(this), stmt.line);
+		if (before.isEmpty())
+			return loop;
+		before.add(loop);
+		return new Stmt.Block(before, stmt.line);
+	}
+}
@@ -0,0 +1,37 @@
+package edu.wisc.ir;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** A straight-line sequence of instructions ending in a single terminator. */
+public final class BasicBlock {
+	public final int id;
+	public final List<Phi> phis = new ArrayList<>();
+	public final List<Instr> instrs = new ArrayList<>();
+	public final List<BasicBlock> preds = new ArrayList<>();
+	public final List<BasicBlock> succs = new ArrayList<>();
+
+	BasicBlock(int id) {
+		this.id = id;
+	}
+
+	public String name() {
+		return "bb" + this.id;
+	}
+
+	public Instr terminator() {
+		if (this.instrs.isEmpty())
+			return null;
+		Instr last = this.instrs.get(this.instrs.size() - 1);
+		return last.isTerminator() ? last : null;
+	}
+
+	public boolean isTerminated() {
+		return this.terminator() != null;
+	}
+
+	@Override
+	public String toString() {
+		return this.name();
+	}
+}
@@ -0,0 +1,141 @@
+package edu.wisc.ir;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/** Control flow graph utilities over the blocks of an {@link IrFunction}. */
+public final class Cfg {
+	private Cfg() {
+	}
+
+	// Blocks reachable from the entry, in reverse postorder
+	public static List<BasicBlock> reversePostorder(IrFunction fn) {
+		List<BasicBlock> post = new ArrayList<>();
+		Set<BasicBlock> seen = new HashSet<>();
+		// Explicit stack of (block, next successor index) to avoid deep recursion
+		Deque<BasicBlock> blocks = new ArrayDeque<>();
+		Deque<Integer> indices = new ArrayDeque<>();
+		blocks.push(fn.entry());
+		indices.push(0);
+		seen.add(fn.entry());
+		while (!blocks.isEmpty()) {
+			BasicBlock b = blocks.peek();
+			int i = indices.pop();
+			if (i < b.succs.size()) {
+				indices.push(i + 1);
+				BasicBlock s = b.succs.get(i);
+				if (seen.add(s)) {
+					blocks.push(s);
+					indices.push(0);
+				}
+			} else {
+				blocks.pop();
+				post.add(b);
+			}
+		}
+		Collections.reverse(post);
+		return post;
+	}
+
+	// Drops blocks the entry can't reach, along with their phi operands in reachable successors
+	public static void removeUnreachable(IrFunction fn) {
+		Set<BasicBlock> live = new HashSet<>(reversePostorder(fn));
+		for (BasicBlock b : fn.blocks) {
+			if (live.contains(b))
+				continue;
+			for (BasicBlock s : b.succs) {
+				if (!live.contains(s))
+					continue;
+				int i;
+				while ((i = s.preds.indexOf(b)) >= 0) {
+					s.preds.remove(i);
+					for (Phi phi : s.phis)
+						phi.operands.remove(i);
+				}
+			}
+		}
+		fn.blocks.removeIf(b -> !live.contains(b));
+	}
+
+	/*
+	 * An edge is critical when its source has several successors and its target
+	 * several predecessors. Copies for the target's phis can't be placed at either
+	 * end, so each one gets a new block of its own.
+	 */
+	public static void splitCriticalEdges(IrFunction fn) {
+		List<BasicBlock> original = new ArrayList<>(fn.blocks);
+		for (BasicBlock b : original) {
+			if (b.succs.size() < 2)
+				continue;
+			for (int i = 0; i < b.succs.size(); i++) {
+				BasicBlock s = b.succs.get(i);
+				if (s.preds.size() < 2)
+					continue;
+				BasicBlock mid = fn.newBlock();
+				mid.instrs.add(new Instr.Jump(s));
+				mid.preds.add(b);
+				mid.succs.add(s);
+				b.succs.set(i, mid);
+				// Keep the predecessor's position so phi operands stay aligned
+				s.preds.set(s.preds.indexOf(b), mid);
+				retarget(b, s, mid);
+			}
+		}
+	}
+
+	// Points the first branch of b that goes to from at to instead
+	private static void retarget(BasicBlock b, BasicBlock from, BasicBlock to) {
+		int last = b.instrs.size() - 1;
+		Instr term = b.instrs.get(last);
+		if (term instanceof Instr.Branch br) {
+			if (br.ifTrue() == from)
+				b.instrs.set(last, new Instr.Branch(br.condition(), to, br.ifFalse()));
+			else
+				b.instrs.set(last, new Instr.Branch(br.condition(), br.ifTrue(), to));
+		} else if (term instanceof Instr.Jump) {
+			b.instrs.set(last, new Instr.Jump(to));
+		}
+	}
+
+	// Removes instructions whose results are never read and that have no side effects
+	public static void removeDeadCode(IrFunction fn) {
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			Set<VReg> used = new HashSet<>();
+			for (BasicBlock b : fn.blocks) {
+				for (Phi phi : b.phis)
+					for (Operand o : phi.operands)
+						if (o instanceof VReg v)
+							used.add(v);
+				for (Instr in : b.instrs)
+					for (Operand o : in.uses())
+						if (o instanceof VReg v)
+							used.add(v);
+			}
+			for (BasicBlock b : fn.blocks) {
+				changed |= b.phis.removeIf(phi -> !used.contains(phi.dst));
+				for (Iterator<Instr> it = b.instrs.iterator(); it.hasNext();) {
+					Instr in = it.next();
+					if (in.def() != null && !used.contains(in.def()) && isPure(in)) {
+						it.remove();
+						changed = true;
+					}
+				}
+			}
+		}
+	}
+
+	// Division may trap, so it only counts as pure with a non-zero constant divisor
+	public static boolean isPure(Instr in) {
+		if (in instanceof Instr.Binary bin)
+			return bin.op() != Op.DIV || (bin.right() instanceof Const c && c.value() != 0);
+		return in instanceof Instr.Copy || in instanceof Instr.Unary || in instanceof Instr.Load;
+	}
+}
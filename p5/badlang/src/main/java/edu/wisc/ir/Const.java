@@ -0,0 +1,12 @@
+package edu.wisc.ir;
+
+/** An integer constant. Booleans are 0 (false) and 1 (true). */
+public record Const(int value) implements Operand {
+	public static final Const ZERO = new Const(0);
+	public static final Const ONE = new Const(1);
+
+	@Override
+	public String toString() {
+		return Integer.toString(this.value);
+	}
+}
@@ -0,0 +1,114 @@
+package edu.wisc.ir;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Dominators of a function's reachable blocks, computed with the iterative
+ * algorithm of Cooper, Harvey and Kennedy ("A Simple, Fast Dominance
+ * Algorithm"), plus dominance frontiers.
+ */
+public final class DominatorTree {
+	private final List<BasicBlock> order;
+	private final Map<BasicBlock, Integer> index = new HashMap<>();
+	private final BasicBlock[] idom;
+	private final Map<BasicBlock, List<BasicBlock>> children = new HashMap<>();
+	private final Map<BasicBlock, Set<BasicBlock>> frontier = new HashMap<>();
+
+	public DominatorTree(IrFunction fn) {
+		this.order = Cfg.reversePostorder(fn);
+		for (int i = 0; i < this.order.size(); i++)
+			this.index.put(this.order.get(i), i);
+		this.idom = new BasicBlock[this.order.size()];
+		this.idom[0] = this.order.get(0);
+
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int i = 1; i < this.order.size(); i++) {
+				BasicBlock b = this.order.get(i);
+				BasicBlock newIdom = null;
+				for (BasicBlock p : b.preds) {
+					Integer pi = this.index.get(p);
+					if (pi == null || this.idom[pi] == null)
+						continue;
+					newIdom = newIdom == null ? p : this.intersect(p, newIdom);
+				}
+				if (this.idom[i] != newIdom) {
+					this.idom[i] = newIdom;
+					changed = true;
+				}
+			}
+		}
+
+		for (BasicBlock b : this.order)
+			this.children.put(b, new ArrayList<>());
+		for (int i = 1; i < this.order.size(); i++)
+			this.children.get(this.idom[i]).add(this.order.get(i));
+		this.computeFrontiers();
+	}
+
+	private BasicBlock intersect(BasicBlock a, BasicBlock b) {
+		int x = this.index.get(a);
+		int y = this.index.get(b);
+		while (x != y) {
+			while (x > y)
+				x = this.index.get(this.idom[x]);
+			while (y > x)
+				y = this.index.get(this.idom[y]);
+		}
+		return this.order.get(x);
+	}
+
+	// Walk up from each predecessor of a join point until reaching its idom
+	private void computeFrontiers() {
+		for (BasicBlock b : this.order)
+			this.frontier.put(b, new LinkedHashSet<>());
+		for (BasicBlock b : this.order) {
+			if (b.preds.size() < 2)
+				continue;
+			BasicBlock stop = this.idom(b);
+			for (BasicBlock p : b.preds) {
+				if (!this.index.containsKey(p))
+					continue;
+				BasicBlock runner = p;
+				while (runner != stop) {
+					this.frontier.get(runner).add(b);
+					runner = this.idom(runner);
+				}
+			}
+		}
+	}
+
+	// The immediate dominator of b; the entry block is its own
+	public BasicBlock idom(BasicBlock b) {
+		return this.idom[this.index.get(b)];
+	}
+
+	public List<BasicBlock> children(BasicBlock b) {
+		return this.children.get(b);
+	}
+
+	public Set<BasicBlock> frontier(BasicBlock b) {
+		return this.frontier.get(b);
+	}
+
+	// Blocks in reverse postorder, so every block comes after its dominators
+	public List<BasicBlock> order() {
+		return this.order;
+	}
+
+	public boolean dominates(BasicBlock a, BasicBlock b) {
+		Integer target = this.index.get(a);
+		Integer i = this.index.get(b);
+		if (target == null || i == null)
+			return false;
+		while (i > target)
+			i = this.index.get(this.idom[i]);
+		return i.equals(target);
+	}
+}
@@ -0,0 +1,235 @@
+package edu.wisc.ir;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.UnaryOperator;
+
+/**
+ * Three-address instructions. Each block ends with exactly one terminator
+ * ({@link Jump}, {@link Branch} or {@link Return}); phi nodes are kept
+ * separately in {@link BasicBlock#phis}.
+ */
+public sealed interface Instr {
+	// The register this instruction defines, or null
+	VReg def();
+
+	// The operands this instruction reads
+	List<Operand> uses();
+
+	// A copy of this instruction with every operand it reads passed through f
+	Instr mapUses(UnaryOperator<Operand> f);
+
+	default boolean isTerminator() {
+		return false;
+	}
+
+	record Copy(VReg dst, Operand src) implements Instr {
+		public VReg def() {
+			return this.dst;
+		}
+
+		public List<Operand> uses() {
+			return List.of(this.src);
+		}
+
+		public Instr mapUses(UnaryOperator<Operand> f) {
+			return new Copy(this.dst, f.apply(this.src));
+		}
+
+		@Override
+		public String toString() {
+			return this.dst + " = " + this.src;
+		}
+	}
+
+	record Binary(VReg dst, Op op, Operand left, Operand right) implements Instr {
+		public VReg def() {
+			return this.dst;
+		}
+
+		public List<Operand> uses() {
+			return List.of(this.left, this.right);
+		}
+
+		public Instr mapUses(UnaryOperator<Operand> f) {
+			return new Binary(this.dst, this.op, f.apply(this.left), f.apply(this.right));
+		}
+
+		@Override
+		public String toString() {
+			return this.dst + " = " + this.op + " " + this.left + ", " + this.right;
+		}
+	}
+
+	record Unary(VReg dst, Op op, Operand operand) implements Instr {
+		public VReg def() {
+			return this.dst;
+		}
+
+		public List<Operand> uses() {
+			return List.of(this.operand);
+		}
+
+		public Instr mapUses(UnaryOperator<Operand> f) {
+			return new Unary(this.dst, this.op, f.apply(this.operand));
+		}
+
+		@Override
+		public String toString() {
+			return this.dst + " = " + this.op + " " + this.operand;
+		}
+	}
+
+	// Reads a global variable from memory
+	record Load(VReg dst, String global) implements Instr {
+		public VReg def() {
+			return this.dst;
+		}
+
+		public List<Operand> uses() {
+			return List.of();
+		}
+
+		public Instr mapUses(UnaryOperator<Operand> f) {
+			return this;
+		}
+
+		@Override
+		public String toString() {
+			return this.dst + " = load @" + this.global;
+		}
+	}
+
+	// Writes a global variable to memory
+	record Store(String global, Operand value) implements Instr {
+		public VReg def() {
+			return null;
+		}
+
+		public List<Operand> uses() {
+			return List.of(this.value);
+		}
+
+		public Instr mapUses(UnaryOperator<Operand> f) {
+			return new Store(this.global, f.apply(this.value));
+		}
+
+		@Override
+		public String toString() {
+			return "store @" + this.global + ", " + this.value;
+		}
+	}
+
+	record Call(VReg dst, String function, List<Operand> args) implements Instr {
+		public VReg def() {
+			return this.dst;
+		}
+
+		public List<Operand> uses() {
+			return this.args;
+		}
+
+		public Instr mapUses(UnaryOperator<Operand> f) {
+			List<Operand> mapped = new ArrayList<>();
+			for (Operand a : this.args)
+				mapped.add(f.apply(a));
+			return new Call(this.dst, this.function, mapped);
+		}
+
+		@Override
+		public String toString() {
+			return this.dst + " = call " + this.function + this.args;
+		}
+	}
+
+	// Prints an int, or true/false if bool is set, followed by a newline
+	record Print(Operand value, boolean bool) implements Instr {
+		public VReg def() {
+			return null;
+		}
+
+		public List<Operand> uses() {
+			return List.of(this.value);
+		}
+
+		public Instr mapUses(UnaryOperator<Operand> f) {
+			return new Print(f.apply(this.value), this.bool);
+		}
+
+		@Override
+		public String toString() {
+			return (this.bool ? "print.bool " : "print.int ") + this.value;
+		}
+	}
+
+	record Jump(BasicBlock target) implements Instr {
+		public VReg def() {
+			return null;
+		}
+
+		public List<Operand> uses() {
+			return List.of();
+		}
+
+		public Instr mapUses(UnaryOperator<Operand> f) {
+			return this;
+		}
+
+		public boolean isTerminator() {
+			return true;
+		}
+
+		@Override
+		public String toString() {
+			return "jump " + this.target.name();
+		}
+	}
+
+	// Goes to ifTrue when the condition is non-zero
+	record Branch(Operand condition, BasicBlock ifTrue, BasicBlock ifFalse) implements Instr {
+		public VReg def() {
+			return null;
+		}
+
+		public List<Operand> uses() {
+			return List.of(this.condition);
+		}
+
+		public Instr mapUses(UnaryOperator<Operand> f) {
+			return new Branch(f.apply(this.condition), this.ifTrue, this.ifFalse);
+		}
+
+		public boolean isTerminator() {
+			return true;
+		}
+
+		@Override
+		public String toString() {
+			return "branch " + this.condition + ", " + this.ifTrue.name() + ", " + this.ifFalse.name();
+		}
+	}
+
+	// Returns from the function; value is null for the top level code
+	record Return(Operand value) implements Instr {
+		public VReg def() {
+			return null;
+		}
+
+		public List<Operand> uses() {
+			return this.value == null ? List.of() : List.of(this.value);
+		}
+
+		public Instr mapUses(UnaryOperator<Operand> f) {
+			return this.value == null ? this : new Return(f.apply(this.value));
+		}
+
+		public boolean isTerminator() {
+			return true;
+		}
+
+		@Override
+		public String toString() {
+			return this.value == null ? "return" : "return " + this.value;
+		}
+	}
+}
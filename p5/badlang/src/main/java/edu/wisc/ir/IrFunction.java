@@ -0,0 +1,57 @@
+package edu.wisc.ir;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One function in IR form. The top level code of a program becomes a function
+ * named "main" with no parameters that doesn't return a value.
+ */
+public final class IrFunction {
+	public final String name;
+	// Assembly label of the function: "main" for the top level, "_name" otherwise
+	public final String label;
+	public final List<VReg> params = new ArrayList<>();
+	public final List<BasicBlock> blocks = new ArrayList<>();
+	public final boolean returnsValue;
+	private int nextReg = 0;
+	private int nextBlock = 0;
+
+	public IrFunction(String name, String label, boolean returnsValue) {
+		this.name = name;
+		this.label = label;
+		this.returnsValue = returnsValue;
+	}
+
+	public BasicBlock entry() {
+		return this.blocks.get(0);
+	}
+
+	public VReg newReg() {
+		return new VReg(this.nextReg++);
+	}
+
+	// Number of registers handed out so far; every VReg id is below this
+	public int regCount() {
+		return this.nextReg;
+	}
+
+	public BasicBlock newBlock() {
+		BasicBlock b = new BasicBlock(this.nextBlock++);
+		this.blocks.add(b);
+		return b;
+	}
+
+	/*
+	 * Assembly label of one of this function's blocks. User labels all start with
+	 * "_", so the "L" prefix keeps these from clashing with them.
+	 */
+	public String blockLabel(BasicBlock b) {
+		return "L" + this.label + "_bb" + b.id;
+	}
+
+	public static void addEdge(BasicBlock from, BasicBlock to) {
+		from.succs.add(to);
+		to.preds.add(from);
+	}
+}
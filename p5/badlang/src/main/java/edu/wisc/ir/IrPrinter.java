@@ -0,0 +1,36 @@
+package edu.wisc.ir;
+
+/** Renders IR as text for debugging (see the --dump-ir flag). */
+public final class IrPrinter {
+	private IrPrinter() {
+	}
+
+	public static String print(IrProgram program) {
+		StringBuilder sb = new StringBuilder();
+		for (String g : program.globals)
+			sb.append("global @").append(g).append('\n');
+		for (IrFunction fn : program.functions) {
+			if (sb.length() > 0)
+				sb.append('\n');
+			sb.append(print(fn));
+		}
+		return sb.toString();
+	}
+
+	public static String print(IrFunction fn) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("function ").append(fn.name).append(fn.params).append(" {\n");
+		for (BasicBlock b : fn.blocks) {
+			sb.append(b.name()).append(':');
+			if (!b.preds.isEmpty())
+				sb.append("\t\t; preds ").append(b.preds);
+			sb.append('\n');
+			for (Phi phi : b.phis)
+				sb.append('\t').append(phi).append('\n');
+			for (Instr in : b.instrs)
+				sb.append('\t').append(in).append('\n');
+		}
+		sb.append("}\n");
+		return sb.toString();
+	}
+}
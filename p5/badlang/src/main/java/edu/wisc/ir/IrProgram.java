@@ -0,0 +1,10 @@
+package edu.wisc.ir;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** A whole program: its global variables and functions, with the top level code first. */
+public final class IrProgram {
+	public final List<String> globals = new ArrayList<>();
+	public final List<IrFunction> functions = new ArrayList<>();
+}
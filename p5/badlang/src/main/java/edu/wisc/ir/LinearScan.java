@@ -0,0 +1,257 @@
+package edu.wisc.ir;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Linear scan register allocation (Poletto and Sarkar) for a function after
+ * {@link SsaDestruction}. Each virtual register gets one live interval
+ * spanning every instruction where it might be live, and the intervals are
+ * handed registers in order of their start. When none is free, whichever
+ * interval ends last is spilled to a stack slot.
+ *
+ * Values live across a call prefer the callee saved $s registers, which the
+ * function saves once in its prologue. Any that end up in a $t register are
+ * saved and restored around the call instead. $t8 and $t9 are never
+ * allocated; the emitter uses them as scratch registers for spilled values
+ * and constants.
+ */
+public final class LinearScan {
+	public static final List<String> TEMPS = List.of("$t0", "$t1", "$t2", "$t3", "$t4", "$t5", "$t6", "$t7");
+	public static final List<String> SAVED = List.of("$s0", "$s1", "$s2", "$s3", "$s4", "$s5", "$s6", "$s7");
+
+	private static final class Interval {
+		final VReg reg;
+		int start = Integer.MAX_VALUE;
+		int end = Integer.MIN_VALUE;
+		boolean crossesCall;
+		// A register it would like, to turn a copy into nothing
+		VReg hint;
+		String assigned;
+
+		Interval(VReg reg) {
+			this.reg = reg;
+		}
+
+		void cover(int pos) {
+			this.start = Math.min(this.start, pos);
+			this.end = Math.max(this.end, pos);
+		}
+	}
+
+	private final Map<VReg, Interval> intervals = new HashMap<>();
+	private final Map<VReg, Integer> spillOffset = new HashMap<>();
+	private final Map<Instr, List<String>> savedAcross = new IdentityHashMap<>();
+	private final Set<String> usedSaved = new LinkedHashSet<>();
+	private final Map<String, Integer> savedOffset = new HashMap<>();
+	private final Map<String, Integer> callerSaveOffset = new HashMap<>();
+	private int frameSlots;
+
+	public LinearScan(IrFunction fn) {
+		this.buildIntervals(fn);
+		this.allocate(fn);
+	}
+
+	// ---------- Live intervals ----------
+
+	private Interval interval(VReg v) {
+		return this.intervals.computeIfAbsent(v, Interval::new);
+	}
+
+	private void buildIntervals(IrFunction fn) {
+		Liveness live = new Liveness(fn);
+		// Parameters are all defined at position 0, before the first instruction
+		for (VReg p : fn.params)
+			this.interval(p).cover(0);
+
+		List<Integer> calls = new ArrayList<>();
+		int pos = 2;
+		for (BasicBlock b : fn.blocks) {
+			int first = pos;
+			for (Instr in : b.instrs) {
+				for (Operand o : in.uses())
+					if (o instanceof VReg v)
+						this.interval(v).cover(pos);
+				if (in.def() != null)
+					this.interval(in.def()).cover(pos);
+				if (in instanceof Instr.Call)
+					calls.add(pos);
+				if (in instanceof Instr.Copy c && c.src() instanceof VReg src)
+					this.interval(c.dst()).hint = src;
+				pos += 2;
+			}
+			int last = pos - 2;
+			for (VReg v : live.liveIn(b))
+				this.interval(v).cover(first);
+			for (VReg v : live.liveOut(b))
+				this.interval(v).cover(last);
+		}
+
+		for (Interval i : this.intervals.values()) {
+			for (int c : calls) {
+				if (i.start < c && c < i.end) {
+					i.crossesCall = true;
+					break;
+				}
+			}
+		}
+	}
+
+	// ---------- The scan ----------
+
+	private void allocate(IrFunction fn) {
+		List<Interval> order = new ArrayList<>(this.intervals.values());
+		order.sort(Comparator.comparingInt((Interval i) -> i.start).thenComparingInt(i -> i.reg.id()));
+
+		List<Interval> active = new ArrayList<>();
+		List<String> free = new ArrayList<>(TEMPS);
+		free.addAll(SAVED);
+		List<VReg> spilled = new ArrayList<>();
+
+		for (Interval cur : order) {
+			// A value read at cur.start is done with its register by the time cur is written
+			for (int k = active.size() - 1; k >= 0; k--) {
+				Interval old = active.get(k);
+				if (old.end <= cur.start) {
+					active.remove(k);
+					free.add(old.assigned);
+				}
+			}
+
+			String reg = this.pick(cur, free);
+			if (reg != null) {
+				free.remove(reg);
+				cur.assigned = reg;
+				active.add(cur);
+				continue;
+			}
+
+			// Out of registers: spill whichever of cur and the active intervals lives longest
+			Interval victim = cur;
+			for (Interval a : active)
+				if (a.end > victim.end)
+					victim = a;
+			if (victim != cur) {
+				cur.assigned = victim.assigned;
+				victim.assigned = null;
+				active.remove(victim);
+				active.add(cur);
+			}
+			spilled.add(victim.reg);
+		}
+
+		for (String s : SAVED) {
+			for (Interval i : this.intervals.values()) {
+				if (s.equals(i.assigned)) {
+					this.usedSaved.add(s);
+					break;
+				}
+			}
+		}
+
+		// Frame slots below the saved $fp: saved $s registers, spills, then $t saves around calls
+		int slot = 0;
+		for (String s : SAVED) {
+			if (this.usedSaved.contains(s))
+				this.savedOffset.put(s, -8 - 4 * slot++);
+		}
+		for (VReg v : spilled) {
+			int param = fn.params.indexOf(v);
+			if (param >= 0)
+				this.spillOffset.put(v, 4 * (fn.params.size() - param));
+			else
+				this.spillOffset.put(v, -8 - 4 * slot++);
+		}
+
+		int pos = 2;
+		for (BasicBlock b : fn.blocks) {
+			for (Instr in : b.instrs) {
+				if (in instanceof Instr.Call) {
+					List<String> saved = new ArrayList<>();
+					for (Interval i : this.intervals.values())
+						if (i.assigned != null && TEMPS.contains(i.assigned) && i.start < pos && pos < i.end)
+							saved.add(i.assigned);
+					saved.sort(null);
+					this.savedAcross.put(in, saved);
+				}
+				pos += 2;
+			}
+		}
+		// Each $t register saved around some call gets a save slot of its own
+		List<String> temps = new ArrayList<>();
+		for (List<String> saved : this.savedAcross.values())
+			for (String t : saved)
+				if (!temps.contains(t))
+					temps.add(t);
+		temps.sort(null);
+		for (String t : temps)
+			this.callerSaveOffset.put(t, -8 - 4 * slot++);
+		this.frameSlots = slot;
+	}
+
+	private String pick(Interval cur, List<String> free) {
+		if (cur.hint != null) {
+			Interval h = this.intervals.get(cur.hint);
+			if (h.assigned != null && free.contains(h.assigned)
+					&& (!cur.crossesCall || SAVED.contains(h.assigned)))
+				return h.assigned;
+		}
+		List<String> first = cur.crossesCall ? SAVED : TEMPS;
+		List<String> second = cur.crossesCall ? TEMPS : SAVED;
+		for (String r : first)
+			if (free.contains(r))
+				return r;
+		for (String r : second)
+			if (free.contains(r))
+				return r;
+		return null;
+	}
+
+	// ---------- Results ----------
+
+	// The register holding v, or null if it lives in a stack slot
+	public String register(VReg v) {
+		Interval i = this.intervals.get(v);
+		return i == null ? null : i.assigned;
+	}
+
+	// $fp offset of a spilled value
+	public int offset(VReg v) {
+		return this.spillOffset.get(v);
+	}
+
+	// Whether v is never read after it's defined
+	public boolean isDead(VReg v) {
+		Interval i = this.intervals.get(v);
+		return i == null || i.start == i.end;
+	}
+
+	// $t registers holding values that must survive the given call
+	public List<String> savedAcross(Instr call) {
+		return this.savedAcross.get(call);
+	}
+
+	public int callerSaveOffset(String reg) {
+		return this.callerSaveOffset.get(reg);
+	}
+
+	// Callee saved registers this function writes, so must preserve
+	public Set<String> usedSaved() {
+		return this.usedSaved;
+	}
+
+	public int savedOffset(String reg) {
+		return this.savedOffset.get(reg);
+	}
+
+	// Stack slots needed below the saved $fp
+	public int frameSlots() {
+		return this.frameSlots;
+	}
+}
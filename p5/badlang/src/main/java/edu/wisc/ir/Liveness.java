@@ -0,0 +1,61 @@
+package edu.wisc.ir;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Live variable analysis over a function without phi nodes (after
+ * {@link SsaDestruction}). Solved backwards to a fixpoint at the block level.
+ */
+public final class Liveness {
+	private final Map<BasicBlock, Set<VReg>> liveIn = new HashMap<>();
+	private final Map<BasicBlock, Set<VReg>> liveOut = new HashMap<>();
+
+	public Liveness(IrFunction fn) {
+		Map<BasicBlock, Set<VReg>> uses = new HashMap<>();
+		Map<BasicBlock, Set<VReg>> defs = new HashMap<>();
+		for (BasicBlock b : fn.blocks) {
+			Set<VReg> use = new HashSet<>();
+			Set<VReg> def = new HashSet<>();
+			for (Instr in : b.instrs) {
+				for (Operand o : in.uses())
+					if (o instanceof VReg v && !def.contains(v))
+						use.add(v);
+				if (in.def() != null)
+					def.add(in.def());
+			}
+			uses.put(b, use);
+			defs.put(b, def);
+			this.liveIn.put(b, new HashSet<>());
+			this.liveOut.put(b, new HashSet<>());
+		}
+
+		// Visiting blocks last to first converges quickly for backward problems
+		List<BasicBlock> order = fn.blocks;
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int i = order.size() - 1; i >= 0; i--) {
+				BasicBlock b = order.get(i);
+				Set<VReg> out = this.liveOut.get(b);
+				for (BasicBlock s : b.succs)
+					changed |= out.addAll(this.liveIn.get(s));
+				Set<VReg> in = new HashSet<>(out);
+				in.removeAll(defs.get(b));
+				in.addAll(uses.get(b));
+				changed |= this.liveIn.get(b).addAll(in);
+			}
+		}
+	}
+
+	public Set<VReg> liveIn(BasicBlock b) {
+		return this.liveIn.get(b);
+	}
+
+	public Set<VReg> liveOut(BasicBlock b) {
+		return this.liveOut.get(b);
+	}
+}
@@ -0,0 +1,257 @@
+package edu.wisc.ir;
+
+import java.util.List;
+
+/**
+ * Emits MIPS assembly from IR. Uses the same calling convention as the AST
+ * code generator: arguments are pushed on the stack, $ra lives at 0($fp) and
+ * the caller's $fp at -4($fp). Virtual registers are mapped to machine
+ * registers by {@link LinearScan}; spilled ones live in stack slots, and
+ * spilled parameters simply stay in their argument slot.
+ */
+public final class MipsEmitter {
+	private static final String SCRATCH1 = "$t8";
+	private static final String SCRATCH2 = "$t9";
+
+	private final StringBuilder out = new StringBuilder();
+	private IrFunction fn;
+	private LinearScan alloc;
+	private int printCount = 0;
+
+	public String emit(IrProgram program) {
+		this.out.setLength(0);
+		this.out.append(".data\n");
+		for (String g : program.globals) {
+			this.out.append(".align 2\n");
+			this.out.append("_").append(g).append(":\t\t.space 4\n");
+		}
+		this.out.append(".align 2\n_bool_true:\t\t.asciiz \"true\\n\"\n");
+		this.out.append(".align 2\n_bool_false:\t\t.asciiz \"false\\n\"\n");
+		this.out.append(".align 2\n_string_newline:\t\t.asciiz \"\\n\"\n");
+		this.out.append("\n.text\n.globl main\n\n");
+
+		for (IrFunction f : program.functions) {
+			SsaDestruction.run(f);
+			// Reverse postorder puts split edge blocks next to their source and most jumps fall through
+			List<BasicBlock> order = Cfg.reversePostorder(f);
+			f.blocks.clear();
+			f.blocks.addAll(order);
+			this.function(f);
+			this.out.append('\n');
+		}
+		return this.out.toString();
+	}
+
+	private void function(IrFunction f) {
+		this.fn = f;
+		this.alloc = new LinearScan(f);
+
+		this.out.append(f.label).append(":\n");
+		this.out.append("\t# Preamble:\n");
+		this.asm("sw $ra, 0($sp)");
+		this.asm("subu $sp, $sp, 4");
+		this.asm("sw $fp, 0($sp)");
+		this.asm("subu $sp, $sp, 4");
+		this.asm("addu $fp, $sp, 8");
+		if (this.alloc.frameSlots() > 0)
+			this.asm("subu $sp, $sp, " + 4 * this.alloc.frameSlots());
+		for (String s : this.alloc.usedSaved())
+			this.asm("sw " + s + ", " + this.alloc.savedOffset(s) + "($fp)");
+		for (int i = 0; i < f.params.size(); i++) {
+			VReg p = f.params.get(i);
+			String reg = this.alloc.register(p);
+			if (reg != null && !this.alloc.isDead(p))
+				this.asm("lw " + reg + ", " + 4 * (f.params.size() - i) + "($fp)");
+		}
+		this.out.append("\t# Body:\n");
+
+		List<BasicBlock> blocks = f.blocks;
+		for (int i = 0; i < blocks.size(); i++) {
+			BasicBlock b = blocks.get(i);
+			BasicBlock next = i + 1 < blocks.size() ? blocks.get(i + 1) : null;
+			this.out.append(f.blockLabel(b)).append(":\n");
+			for (Instr in : b.instrs)
+				this.instr(in, next);
+		}
+
+		this.out.append(this.returnLabel()).append(":\n");
+		this.out.append("\t# Exit:\n");
+		for (String s : this.alloc.usedSaved())
+			this.asm("lw " + s + ", " + this.alloc.savedOffset(s) + "($fp)");
+		this.asm("lw $ra, 0($fp)");
+		this.asm("move $t0, $fp");
+		this.asm("lw $fp, -4($fp)");
+		this.asm("move $sp, $t0");
+		this.asm("jr $ra");
+	}
+
+	private String returnLabel() {
+		return "return_" + this.fn.label;
+	}
+
+	private void instr(Instr in, BasicBlock next) {
+		switch (in) {
+			case Instr.Copy c -> {
+				String dst = this.alloc.register(c.dst());
+				if (dst != null && c.src() instanceof Const k) {
+					this.asm("li " + dst + ", " + k.value());
+				} else {
+					String src = this.use(c.src(), SCRATCH1);
+					this.move(c.dst(), src);
+				}
+			}
+			case Instr.Binary bin -> {
+				String l = this.use(bin.left(), SCRATCH1);
+				String r = this.use(bin.right(), SCRATCH2);
+				String d = this.target(bin.dst());
+				switch (bin.op()) {
+					case ADD -> this.asm("addu " + d + ", " + l + ", " + r);
+					case SUB -> this.asm("subu " + d + ", " + l + ", " + r);
+					case MUL -> {
+						this.asm("mult " + l + ", " + r);
+						this.asm("mflo " + d);
+					}
+					case DIV -> {
+						this.asm("div " + l + ", " + r);
+						this.asm("mflo " + d);
+					}
+					case EQ -> this.asm("seq " + d + ", " + l + ", " + r);
+					case NE -> this.asm("sne " + d + ", " + l + ", " + r);
+					case LT -> this.asm("slt " + d + ", " + l + ", " + r);
+					case LE -> this.asm("sle " + d + ", " + l + ", " + r);
+					case GT -> this.asm("sgt " + d + ", " + l + ", " + r);
+					case GE -> this.asm("sge " + d + ", " + l + ", " + r);
+					case AND -> this.asm("and " + d + ", " + l + ", " + r);
+					case OR -> this.asm("or " + d + ", " + l + ", " + r);
+					default -> throw new Error("Invalid binary op " + bin.op());
+				}
+				this.finish(bin.dst(), d);
+			}
+			case Instr.Unary un -> {
+				String o = this.use(un.operand(), SCRATCH1);
+				String d = this.target(un.dst());
+				switch (un.op()) {
+					case NEG -> this.asm("subu " + d + ", $zero, " + o);
+					case NOT -> this.asm("xori " + d + ", " + o + ", 1");
+					default -> throw new Error("Invalid unary op " + un.op());
+				}
+				this.finish(un.dst(), d);
+			}
+			case Instr.Load l -> {
+				String d = this.target(l.dst());
+				this.asm("lw " + d + ", _" + l.global());
+				this.finish(l.dst(), d);
+			}
+			case Instr.Store s -> {
+				String v = this.use(s.value(), SCRATCH1);
+				this.asm("sw " + v + ", _" + s.global());
+			}
+			case Instr.Call call -> {
+				List<String> saved = this.alloc.savedAcross(call);
+				for (String t : saved)
+					this.asm("sw " + t + ", " + this.alloc.callerSaveOffset(t) + "($fp)");
+				for (Operand a : call.args()) {
+					String v = this.use(a, SCRATCH1);
+					this.asm("sw " + v + ", 0($sp)");
+					this.asm("subu $sp, $sp, 4");
+				}
+				this.asm("jal _" + call.function());
+				if (!call.args().isEmpty())
+					this.asm("addu $sp, $sp, " + 4 * call.args().size());
+				for (String t : saved)
+					this.asm("lw " + t + ", " + this.alloc.callerSaveOffset(t) + "($fp)");
+				if (!this.alloc.isDead(call.dst()))
+					this.move(call.dst(), "$v0");
+			}
+			case Instr.Print p -> {
+				if (p.bool()) {
+					String v = this.use(p.value(), SCRATCH1);
+					String label = "L" + this.fn.label + "_print" + this.printCount++;
+					this.asm("la $a0, _bool_true");
+					this.asm("bnez " + v + ", " + label);
+					this.asm("la $a0, _bool_false");
+					this.out.append(label).append(":\n");
+					this.asm("li $v0, 4");
+					this.asm("syscall");
+				} else {
+					this.load("$a0", p.value());
+					this.asm("li $v0, 1");
+					this.asm("syscall");
+					this.asm("la $a0, _string_newline");
+					this.asm("li $v0, 4");
+					this.asm("syscall");
+				}
+			}
+			case Instr.Jump j -> {
+				if (j.target() != next)
+					this.asm("j " + this.fn.blockLabel(j.target()));
+			}
+			case Instr.Branch br -> {
+				String c = this.use(br.condition(), SCRATCH1);
+				if (br.ifTrue() == next) {
+					this.asm("beqz " + c + ", " + this.fn.blockLabel(br.ifFalse()));
+				} else {
+					this.asm("bnez " + c + ", " + this.fn.blockLabel(br.ifTrue()));
+					if (br.ifFalse() != next)
+						this.asm("j " + this.fn.blockLabel(br.ifFalse()));
+				}
+			}
+			case Instr.Return r -> {
+				if (r.value() != null)
+					this.load("$v0", r.value());
+				// The exit code directly follows the last block
+				if (next != null)
+					this.asm("j " + this.returnLabel());
+			}
+		}
+	}
+
+	// The register holding o, loading it into scratch first if it's a constant or spilled
+	private String use(Operand o, String scratch) {
+		if (o instanceof VReg v && this.alloc.register(v) != null)
+			return this.alloc.register(v);
+		if (o instanceof Const c && c.value() == 0)
+			return "$zero";
+		this.load(scratch, o);
+		return scratch;
+	}
+
+	// Puts o in exactly the register reg
+	private void load(String reg, Operand o) {
+		switch (o) {
+			case Const c -> this.asm("li " + reg + ", " + c.value());
+			case VReg v -> {
+				String r = this.alloc.register(v);
+				if (r != null)
+					this.asm("move " + reg + ", " + r);
+				else
+					this.asm("lw " + reg + ", " + this.alloc.offset(v) + "($fp)");
+			}
+		}
+	}
+
+	// The register to compute v into; a scratch register if v is spilled
+	private String target(VReg v) {
+		String r = this.alloc.register(v);
+		return r != null ? r : SCRATCH1;
+	}
+
+	// Stores the value computed for v into its stack slot if it was spilled
+	private void finish(VReg v, String reg) {
+		if (this.alloc.register(v) == null)
+			this.asm("sw " + reg + ", " + this.alloc.offset(v) + "($fp)");
+	}
+
+	// Sets v to the value in reg
+	private void move(VReg v, String reg) {
+		String r = this.alloc.register(v);
+		if (r == null)
+			this.asm("sw " + reg + ", " + this.alloc.offset(v) + "($fp)");
+		else if (!r.equals(reg))
+			this.asm("move " + r + ", " + reg);
+	}
+
+	private void asm(String line) {
+		this.out.append('\t').append(line).append('\n');
+	}
+}
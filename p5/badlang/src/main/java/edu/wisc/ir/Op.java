@@ -0,0 +1,30 @@
+package edu.wisc.ir;
+
+/** Arithmetic, comparison and logical operators used by {@link Instr.Binary} and {@link Instr.Unary}. */
+public enum Op {
+	ADD("add"),
+	SUB("sub"),
+	MUL("mul"),
+	DIV("div"),
+	EQ("eq"),
+	NE("ne"),
+	LT("lt"),
+	LE("le"),
+	GT("gt"),
+	GE("ge"),
+	AND("and"),
+	OR("or"),
+	NEG("neg"),
+	NOT("not");
+
+	private final String name;
+
+	Op(String name) {
+		this.name = name;
+	}
+
+	@Override
+	public String toString() {
+		return this.name;
+	}
+}
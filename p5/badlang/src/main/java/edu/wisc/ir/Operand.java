@@ -0,0 +1,5 @@
+package edu.wisc.ir;
+
+/** An instruction operand: either a virtual register or an integer constant. */
+public sealed interface Operand permits VReg, Const {
+}
@@ -0,0 +1,22 @@
+package edu.wisc.ir;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A phi node at the start of a block. Operand i is the value flowing in from
+ * the block's i-th predecessor, so the two lists must be kept in step.
+ */
+public final class Phi {
+	public final VReg dst;
+	public final List<Operand> operands = new ArrayList<>();
+
+	public Phi(VReg dst) {
+		this.dst = dst;
+	}
+
+	@Override
+	public String toString() {
+		return this.dst + " = phi " + this.operands;
+	}
+}
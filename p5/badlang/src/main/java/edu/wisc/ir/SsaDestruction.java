@@ -0,0 +1,76 @@
+package edu.wisc.ir;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Replaces phi nodes with ordinary copies at the end of each predecessor, so
+ * the function can be emitted as-is. Critical edges are split first so every
+ * copy has a block of its own to live in.
+ */
+public final class SsaDestruction {
+	private SsaDestruction() {
+	}
+
+	public static void run(IrFunction fn) {
+		Cfg.splitCriticalEdges(fn);
+		for (BasicBlock b : fn.blocks) {
+			if (b.phis.isEmpty())
+				continue;
+			for (int i = 0; i < b.preds.size(); i++) {
+				List<VReg> dsts = new ArrayList<>();
+				List<Operand> srcs = new ArrayList<>();
+				for (Phi phi : b.phis) {
+					dsts.add(phi.dst);
+					srcs.add(phi.operands.get(i));
+				}
+				List<Instr> copies = sequentialize(fn, dsts, srcs);
+				BasicBlock pred = b.preds.get(i);
+				if (pred.succs.size() == 1) {
+					pred.instrs.addAll(pred.instrs.size() - 1, copies);
+				} else {
+					// Only possible when b has this single predecessor
+					b.instrs.addAll(0, copies);
+				}
+			}
+			b.phis.clear();
+		}
+	}
+
+	/*
+	 * All phis of a block read their operands at once, so the copies have to act
+	 * like one parallel assignment. Emit a copy whenever nothing still pending
+	 * reads its destination; when only cycles remain, save one value in a fresh
+	 * register to break the cycle.
+	 */
+	private static List<Instr> sequentialize(IrFunction fn, List<VReg> dsts, List<Operand> srcs) {
+		List<Instr> out = new ArrayList<>();
+		for (int i = dsts.size() - 1; i >= 0; i--) {
+			if (dsts.get(i).equals(srcs.get(i))) {
+				dsts.remove(i);
+				srcs.remove(i);
+			}
+		}
+		while (!dsts.isEmpty()) {
+			boolean progress = false;
+			for (int i = 0; i < dsts.size(); i++) {
+				if (srcs.contains(dsts.get(i)))
+					continue;
+				out.add(new Instr.Copy(dsts.get(i), srcs.get(i)));
+				dsts.remove(i);
+				srcs.remove(i);
+				progress = true;
+				break;
+			}
+			if (!progress) {
+				VReg blocked = dsts.get(0);
+				VReg tmp = fn.newReg();
+				out.add(new Instr.Copy(tmp, blocked));
+				for (int i = 0; i < srcs.size(); i++)
+					if (srcs.get(i).equals(blocked))
+						srcs.set(i, tmp);
+			}
+		}
+		return out;
+	}
+}
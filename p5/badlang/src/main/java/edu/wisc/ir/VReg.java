@@ -0,0 +1,9 @@
+package edu.wisc.ir;
+
+/** A virtual register. In SSA form each one is defined exactly once. */
+public record VReg(int id) implements Operand {
+	@Override
+	public String toString() {
+		return "%" + this.id;
+	}
+}